@@ -0,0 +1,270 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous structured logger. Request threads only build a small record and put it
+// in a bounded lock-free ring (Vyukov style: a sequence number per slot tells producers
+// and the consumer whose turn it is); a single writer thread formats the records as
+// key=value lines and appends them to a rolling file. WARN and ERROR records are also
+// echoed to stderr by the writer thread.
+//
+// Configuration (-D properties):
+//   iot.log.level     DEBUG, INFO (default), WARN or ERROR
+//   iot.log.full      drop (default) or block: what a request thread does when the ring is full
+//   iot.log.buffer    ring capacity in records, rounded up to a power of two (default 8192)
+//   iot.log.dir       directory of the log files (default logs)
+//   iot.log.maxBytes  size at which the file is rolled (default 10 MB)
+//   iot.log.files     rolled files kept, <name>.1 being the newest (default 5)
+public class AsyncLogger {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static class Record {
+        final long timestamp;
+        final Level level;
+        final String event;
+        final String trace;
+        final Object[] fields; // key, value, key, value...
+
+        Record(long timestamp, Level level, String event, String trace, Object[] fields) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.event = event;
+            this.trace = trace;
+            this.fields = fields;
+        }
+    }
+
+    private static final ThreadLocal<String> TRACE = new ThreadLocal<>();
+
+    private final Level level;
+    private final boolean blockWhenFull;
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<Record> records;
+    private final AtomicLong tail = new AtomicLong(); // next slot a producer claims
+    private long head; // next slot the writer reads, only touched by the writer thread
+    private final AtomicLong dropped = new AtomicLong();
+
+    private BufferedWriter writer;
+    private long written;
+
+    public AsyncLogger(String name) {
+        this.level = Level.valueOf(System.getProperty("iot.log.level", "INFO").toUpperCase());
+        this.blockWhenFull = System.getProperty("iot.log.full", "drop").equalsIgnoreCase("block");
+        this.file = new File(System.getProperty("iot.log.dir", "logs"), name + ".log");
+        this.maxBytes = Long.getLong("iot.log.maxBytes", 10L * 1024 * 1024);
+        this.maxFiles = Integer.getInteger("iot.log.files", 5);
+
+        int requested = Integer.getInteger("iot.log.buffer", 8192);
+        int capacity = Integer.highestOneBit(Math.max(2, requested - 1)) << 1;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.records = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+
+        Thread thread = new Thread(this::drain, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Trace id added to every record logged by this thread until cleared
+    public static void setTrace(String trace) {
+        TRACE.set(trace);
+    }
+
+    public static void clearTrace() {
+        TRACE.remove();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String event, Object... fields) {
+        log(Level.DEBUG, event, fields);
+    }
+
+    public void info(String event, Object... fields) {
+        log(Level.INFO, event, fields);
+    }
+
+    public void warn(String event, Object... fields) {
+        log(Level.WARN, event, fields);
+    }
+
+    public void error(String event, Object... fields) {
+        log(Level.ERROR, event, fields);
+    }
+
+    // fields are key, value pairs; values are formatted later, on the writer thread
+    public void log(Level level, String event, Object... fields) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Record record = new Record(System.currentTimeMillis(), level, event, TRACE.get(), fields);
+        while (!offer(record)) {
+            if (!blockWhenFull) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    private boolean offer(Record record) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    records.set(index, record);
+                    sequences.set(index, pos + 1); // publishes the record to the writer
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; // the writer has not freed this slot yet: full
+            } else {
+                pos = tail.get(); // another producer took it
+            }
+        }
+    }
+
+    private Record poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Record record = records.get(index);
+        records.set(index, null);
+        sequences.set(index, head + mask + 1); // free for the producer one lap ahead
+        head++;
+        return record;
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long idleNanos = 0;
+        while (true) {
+            Record record = poll();
+            if (record == null) {
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    write(line, new Record(System.currentTimeMillis(), Level.WARN, "log_dropped", null,
+                            new Object[] { "records", lost }));
+                }
+                flush();
+                idleNanos = Math.min(Math.max(idleNanos * 2, 100_000), 10_000_000);
+                LockSupport.parkNanos(idleNanos);
+                continue;
+            }
+            idleNanos = 0;
+            write(line, record);
+        }
+    }
+
+    private void write(StringBuilder line, Record record) {
+        line.setLength(0);
+        line.append("ts=").append(Instant.ofEpochMilli(record.timestamp));
+        line.append(" level=").append(record.level);
+        line.append(" event=").append(record.event);
+        if (record.trace != null) {
+            line.append(" trace=").append(record.trace);
+        }
+        for (int i = 0; i + 1 < record.fields.length; i += 2) {
+            line.append(' ').append(record.fields[i]).append('=');
+            appendValue(line, record.fields[i + 1]);
+        }
+        if (record.level.compareTo(Level.WARN) >= 0) {
+            System.err.println(line);
+        }
+        line.append('\n');
+        try {
+            if (writer == null || written + line.length() > maxBytes) {
+                roll();
+            }
+            writer.append(line);
+            written += line.length();
+        } catch (IOException e) {
+            System.err.println("Error writing log file " + file + ": " + e.getMessage());
+            writer = null;
+        }
+    }
+
+    // Values with spaces, quotes or = are quoted so lines stay machine-readable
+    private static void appendValue(StringBuilder line, Object value) {
+        String text = String.valueOf(value);
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c < 0x20;
+        }
+        if (!quote) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c >= 0x20) {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private void roll() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            new File(file.getPath() + "." + maxFiles).delete();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File older = new File(file.getPath() + "." + i);
+                if (older.exists()) {
+                    older.renameTo(new File(file.getPath() + "." + (i + 1)));
+                }
+            }
+            if (maxFiles > 0) {
+                file.renameTo(new File(file.getPath() + ".1"));
+            } else {
+                file.delete();
+            }
+        } else if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        writer = new BufferedWriter(new FileWriter(file, true));
+        written = file.length();
+    }
+
+    private void flush() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing log file " + file + ": " + e.getMessage());
+            writer = null;
+        }
+    }
+}
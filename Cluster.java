@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// This node's view of the sharded deployment: the hash ring, which node we are,
+// and a small pool of connections used to forward requests to the other nodes.
+// Configured with -Diot.cluster=host:port,host:port,... and -Diot.node=host:port (required
+// with iot.cluster); without iot.cluster the server runs alone and owns every key. Nodes
+// prove they belong to the cluster with the shared -Diot.cluster.secret.
+public class Cluster {
+
+    private static final int MAX_IDLE_CONNECTIONS = 16; // per peer
+
+    private final HashRing ring;
+    private final String self;
+    private final String secret; // null on a single node, which accepts no peers
+    private final Map<String, ConcurrentLinkedQueue<PeerConnection>> idle = new ConcurrentHashMap<>();
+
+    public Cluster(HashRing ring, String self, String secret) {
+        this.ring = ring;
+        this.self = self;
+        this.secret = secret;
+    }
+
+    public static Cluster fromProperties(int port) {
+        String self = System.getProperty("iot.node", "localhost:" + port);
+        String nodes = System.getProperty("iot.cluster");
+        if (nodes == null || nodes.isEmpty()) {
+            return new Cluster(new HashRing(Arrays.asList(self), 1), self, null);
+        }
+        if (System.getProperty("iot.node") == null) {
+            throw new IllegalArgumentException("iot.cluster requires iot.node, the address clients use for this node");
+        }
+        String secret = System.getProperty("iot.cluster.secret");
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("iot.cluster requires iot.cluster.secret, shared by all nodes");
+        }
+        List<String> list = Arrays.asList(nodes.split(","));
+        if (!list.contains(self)) {
+            throw new IllegalArgumentException("iot.node " + self + " is not part of iot.cluster " + nodes);
+        }
+        return new Cluster(new HashRing(list, Integer.getInteger("iot.cluster.vnodes",
+                HashRing.DEFAULT_VIRTUAL_NODES)), self, secret);
+    }
+
+    public boolean isSingleNode() {
+        return ring.getNodes().size() == 1;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public String routingTable() {
+        return ring.toString();
+    }
+
+    public String ownerOfUser(String userId) {
+        return ring.ownerOfUser(userId);
+    }
+
+    public String ownerOfDomain(String domain) {
+        return ring.ownerOfDomain(domain);
+    }
+
+    public boolean ownsUser(String userId) {
+        return self.equals(ring.ownerOfUser(userId));
+    }
+
+    public boolean ownsDomain(String domain) {
+        return self.equals(ring.ownerOfDomain(domain));
+    }
+
+    public List<String> getPeers() {
+        List<String> peers = new ArrayList<>(ring.getNodes());
+        peers.remove(self);
+        return peers;
+    }
+
+    // Peer requests are only accepted from the hosts listed in the cluster that know the secret
+    public boolean isPeer(InetAddress address, String presentedSecret) {
+        if (isSingleNode() || secret == null || presentedSecret == null
+                || !MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                        presentedSecret.getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        for (String node : ring.getNodes()) {
+            try {
+                for (InetAddress nodeAddress : InetAddress.getAllByName(node.split(":")[0])) {
+                    if (nodeAddress.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // unresolvable node, try the others
+            }
+        }
+        return false;
+    }
+
+    // Sends one request to another node and returns its reply (a String or a byte[])
+    public Object request(String node, String request) throws IOException {
+        ConcurrentLinkedQueue<PeerConnection> pool = idle.computeIfAbsent(node, n -> new ConcurrentLinkedQueue<>());
+        PeerConnection connection = pool.poll();
+        if (connection == null) {
+            connection = new PeerConnection(node, secret);
+        }
+        try {
+            Object reply = connection.call(request);
+            if (pool.size() < MAX_IDLE_CONNECTIONS) {
+                pool.offer(connection);
+            } else {
+                connection.close();
+            }
+            return reply;
+        } catch (IOException | ClassNotFoundException e) {
+            connection.close();
+            throw new IOException("Error talking to node " + node + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static class PeerConnection {
+
+        private final Socket socket;
+        private final ObjectInputStream in;
+        private final ObjectOutputStream out;
+
+        PeerConnection(String node, String secret) throws IOException {
+            String[] address = node.split(":");
+            socket = new Socket(address[0], Integer.parseInt(address[1]));
+            try {
+                in = new ObjectInputStream(socket.getInputStream());
+                out = new ObjectOutputStream(socket.getOutputStream());
+                out.writeObject("PEER " + secret);
+                Object response = in.readObject();
+                if (!"OK-PEER".equals(response)) {
+                    throw new IOException("Node " + node + " refused peer connection: " + response);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                socket.close();
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        Object call(String request) throws IOException, ClassNotFoundException {
+            out.writeObject(request);
+            out.reset();
+            return in.readObject();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hash ring mapping users and domains to the server node ("host:port")
+// that owns them. Each node is placed on the ring many times (virtual nodes) so
+// keys spread evenly and adding a node only moves a fraction of the keyspace.
+// The routing table sent to clients is just the node list and the virtual node
+// count, so clients and servers compute exactly the same owners.
+public class HashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+    private final List<String> nodes;
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.virtualNodes = virtualNodes;
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // Parses a routing table produced by toString(): "RING <virtualNodes> <node1>,<node2>,..."
+    public static HashRing parse(String table) {
+        String[] parts = table.trim().split(" ");
+        if (parts.length != 3 || !parts[0].equals("RING")) {
+            throw new IllegalArgumentException("Invalid routing table: " + table);
+        }
+        return new HashRing(Arrays.asList(parts[2].split(",")), Integer.parseInt(parts[1]));
+    }
+
+    public String ownerOfUser(String userId) {
+        return ownerOf("user:" + userId);
+    }
+
+    public String ownerOfDomain(String domain) {
+        return ownerOf("domain:" + domain);
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public String toString() {
+        return "RING " + virtualNodes + " " + String.join(",", nodes);
+    }
+
+    private String ownerOf(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -8,15 +8,42 @@ import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class IoTDevice {
 
+    private static final int MAX_BUSY_RETRIES = 5;
+    private static final int MAX_REDIRECTS = 3;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+    private static final int UPLOAD_BATCH_SIZE = 500;
+    private static final long HEARTBEAT_MILLIS = Long.getLong("iot.heartbeat", 20) * 1000;
+
     private String serverAddress;
     private int serverPort;
     private int deviceId;
     private String userId;
+    private volatile String password; // kept so a BUSY connection can be retried without asking again
+    private volatile boolean needsPassword; // a background reconnect could not resume and has no password
+    private long retryAfter; // set when the server answered BUSY to the connection
+    private String movedTo; // set when the connection must go to another cluster node
+    private final String seedAddress; // server given on the command line, asked again for routes
+    private final int seedPort;
+    private File routesFile; // cached routing table of the cluster behind the given server
+    private HashRing routes;
+
+    // Current connection, null while offline; guarded by connectionLock
+    private final Object connectionLock = new Object();
+    private Socket socket;
+    private ObjectInputStream in;
+    private ObjectOutputStream out;
+    private boolean reconnecting;
+    private OfflineBuffer offlineBuffer;
+    private long uploadRetryAt; // when the heartbeat thread retries a backlog the server did not take
+    private long uploadBackoff = INITIAL_BACKOFF_MILLIS;
 
     public static void main(String[] args) {
         if (args.length < 3 || args.length > 4) {
@@ -36,80 +63,35 @@ public class IoTDevice {
     public IoTDevice(String serverAddress, int serverPort, int deviceId, String userId) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        this.seedAddress = serverAddress;
+        this.seedPort = serverPort;
         this.deviceId = deviceId;
         this.userId = userId;
+        this.routesFile = new File("clientSession", "routes-" + serverAddress + "-" + serverPort + ".txt");
     }
 
     public void start() {
-        try (Socket socket = new Socket(serverAddress, serverPort);
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-
-                Scanner scanner = new Scanner(System.in)) {
-
-            System.out.print("Enter password: ");
-            String password = scanner.nextLine();
-
-            out.writeObject(userId);
-            out.writeObject(password);
-
-            String response = (String) in.readObject();
-
-            switch (response) {
-                case "WRONG-PWD":
-                    System.out.println("Invalid password");
-                    System.out.println();
-                    return;
-                case "OK-NEW-USER":
-                    System.out.println("User registered");
-                    System.out.println();
-                    break;
-                case "OK-USER":
-                    System.out.println("User authenticated");
-                    System.out.println();
-                    break;
-                default:
-                    System.out.println("Unexpected response from server: " + response);
-                    System.out.println();
-                    return;
+        loadRoutes();
+        try (Scanner scanner = new Scanner(System.in)) {
+            if (!openConnection(scanner)) {
+                return;
             }
             File directory = new File("clientImages");
             if (!directory.exists()) {
                 directory.mkdir();
             }
-            out.writeObject(Integer.toString(deviceId));
 
-            response = (String) in.readObject();
-
-            while (response.equals("NOK-DEVID")) {
-                System.out.println();
-                System.out.print("UserID:Device ID already in use, enter new ID: ");
-                deviceId = scanner.nextInt();
-                scanner.nextLine(); // consume newline character
-                out.writeObject(Integer.toString(deviceId));
-                response = (String) in.readObject();
+            // Readings taken while disconnected, possibly left over from a previous run
+            offlineBuffer = new OfflineBuffer(new File("clientBuffer", userId + "-" + deviceId + ".buf"),
+                    Integer.getInteger("iot.buffer.capacity", 10000));
+            synchronized (connectionLock) {
+                uploadOfflineReadings();
             }
-            if (response.equals("OK-DEVID")) {
-                System.out.println("Device ID registered");
-            }
-
-            out.writeObject((String) "IoTDevice.class");
-            String filePath = IoTDevice.class.getProtectionDomain().getCodeSource().getLocation().getPath();
-            filePath = filePath + IoTDevice.class.getName().replace(".", "/") + ".class";
-
-            File file = new File(filePath);
-            int fileSize = (int) file.length();
-            out.writeObject(fileSize);
 
-            response = (String) in.readObject();
-
-            if (response.equals("NOK-TESTED")) {
-                System.out.println();
-                System.out.println("Program not validated by server");
-                return;
-            }
-            System.out.println();
-            System.out.println("Program validated by server");
+            // Keeps the server-side lease alive while the user is not typing
+            Thread heartbeat = new Thread(this::sendHeartbeats, "heartbeat");
+            heartbeat.setDaemon(true);
+            heartbeat.start();
 
             System.out.println();
             System.out.println("----- IoT Device started -----");
@@ -123,93 +105,36 @@ public class IoTDevice {
             System.out.println("EI <filename.jpg>");
             System.out.println("RT <dm>");
             System.out.println("RI <user-id>:<dev_id>");
+            System.out.println("WHO <dm>");
 
             while (true) {
 
                 System.out.println();
                 System.out.print("Enter command: ");
                 String command = scanner.nextLine();
+                if (needsPassword) {
+                    // The reconnect thread asked for the password, this line is the answer
+                    password = command;
+                    needsPassword = false;
+                    continue;
+                }
                 String[] parts = command.split(" ");
                 String responseMessage = "";
 
-                switch (parts[0]) {
-                    case "CREATE":
-                    case "ADD":
-                    case "RD":
-                    case "ET":
-                        // Send command to server
-                        out.writeObject(command);
-                        // Receive response from server
-                        responseMessage = (String) in.readObject();
-                        break;
-                    case "EI":
-                        if (parts.length != 2) {
-                            responseMessage = "Invalid command";
-                            break;
-                        }
-                        String fileName = parts[1];
-
-                        File imageFile = new File("clientImages/" + fileName);
-                        if (!imageFile.exists()) {
-                            responseMessage = "File not found";
-                            break;
-                        }
-                        byte[] imageData = Files.readAllBytes(imageFile.toPath());
-                        out.writeObject(command);
-                        out.writeObject(imageData);
-                        responseMessage = (String) in.readObject();
-                        break;
-
-                    case "RT":
-                        if (parts.length != 2) {
-                            responseMessage = "Invalid command";
-                            break;
-                        }
-                        out.writeObject(command);
-                        response = (String) in.readObject();
-                        if (!response.startsWith("OK")) {
-                            System.out.println(response);
-                            break;
-                        }
-                        System.out.println(response);
-                        long dataSize = in.readLong();
-                        StringBuilder data = new StringBuilder();
-                        while (data.length() < dataSize) {
-                            data.append(in.readChar());
-                        }
-
-                        try (BufferedWriter writer = new BufferedWriter(new FileWriter("temperature_data.txt", true))) {
-                            writer.write(data.toString());
-                        } catch (IOException e) {
-                            System.err.println("Error writing temperature data: " + e.getMessage());
-                        }
-                        break;
-                    case "RI":
-                        if (parts.length != 2) {
-                            responseMessage = "Invalid command";
-                            break;
-                        }
-                        out.writeObject(command);
-                        response = (String) in.readObject();
-                        if (!response.startsWith("OK")) {
-                            responseMessage = "OK";
+                synchronized (connectionLock) {
+                    if (out == null) {
+                        responseMessage = offlineCommand(parts);
+                    } else {
+                        try {
+                            responseMessage = execute(command, parts);
+                        } catch (IOException | ClassNotFoundException e) {
+                            System.err.println("Error communicating with server: " + e.getMessage());
+                            goOffline();
+                            if (parts[0].equals("ET")) {
+                                responseMessage = offlineCommand(parts); // not confirmed, keep the reading
+                            }
                         }
-                        long imageSize = in.readLong();
-
-                        byte[] iData = new byte[(int) imageSize];
-                        in.readFully(iData);
-
-                        // Save byte array as image file
-                        Path receivedImagesPath = Paths.get("receivedImages");
-                        if (!Files.exists(receivedImagesPath)) {
-                            Files.createDirectory(receivedImagesPath);
-                        }
-                        Path imagePath = receivedImagesPath.resolve("image.jpg");
-                        Files.write(imagePath, iData);
-                        break;
-                    default:
-                        System.out.println("Invalid command");
-                        break;
+                    }
                 }
 
                 if (!responseMessage.isEmpty()) {
@@ -217,12 +142,521 @@ public class IoTDevice {
                 }
             }
 
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error communicating with server: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error opening offline buffer: " + e.getMessage());
         } catch (NoSuchElementException e) {
             // handle CTRL+C
             System.out.println("Program terminated by user.");
             System.exit(0);
         }
     }
-}
\ No newline at end of file
+
+    // Connects, following cluster redirects and honoring BUSY hints. Without a scanner
+    // (background reconnects) the handshake cannot ask the user anything.
+    private boolean openConnection(Scanner scanner) {
+        int attempts = 0;
+        int redirects = 0;
+        while (attempts <= MAX_BUSY_RETRIES && redirects <= MAX_REDIRECTS) {
+            retryAfter = 0;
+            movedTo = null;
+            if (connect(scanner)) {
+                return true;
+            }
+            if (movedTo != null) {
+                // Our user lives on another node, go there directly
+                String[] address = movedTo.split(":");
+                serverAddress = address[0];
+                serverPort = Integer.parseInt(address[1]);
+                redirects++;
+                continue;
+            }
+            if (retryAfter == 0) {
+                return false;
+            }
+            System.out.println("Server busy, retrying in " + retryAfter + " ms");
+            try {
+                Thread.sleep(retryAfter);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            attempts++;
+        }
+        System.out.println(redirects > MAX_REDIRECTS ? "Too many redirects, giving up" : "Server busy, giving up");
+        return false;
+    }
+
+    private boolean connect(Scanner scanner) {
+        Socket socket = null;
+        try {
+            socket = new Socket(serverAddress, serverPort);
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+
+            boolean ready = routes != null || fetchRoutes(in, out);
+            if (ready) {
+                boolean resumed = resumeSession(in, out);
+                ready = retryAfter == 0 && (resumed || handshake(scanner, in, out));
+            }
+            if (!ready) {
+                socket.close();
+                return false;
+            }
+            synchronized (connectionLock) {
+                this.socket = socket;
+                this.in = in;
+                this.out = out;
+            }
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error communicating with server: " + e.getMessage());
+            closeQuietly(socket);
+            if (routes != null && (!serverAddress.equals(seedAddress) || serverPort != seedPort)) {
+                // The cached owner is gone, ask the seed for the current routing table
+                forgetRoutes();
+                movedTo = seedAddress + ":" + seedPort;
+            }
+            return false;
+        }
+    }
+
+    private String execute(String command, String[] parts) throws IOException, ClassNotFoundException {
+        String response;
+        String responseMessage = "";
+
+        switch (parts[0]) {
+            case "CREATE":
+            case "ADD":
+            case "RD":
+            case "ET":
+            case "WHO":
+                // Send command to server and receive its response
+                responseMessage = request(in, out, command, null);
+                break;
+            case "EI":
+                if (parts.length != 2) {
+                    responseMessage = "Invalid command";
+                    break;
+                }
+                String fileName = parts[1];
+
+                File imageFile = new File("clientImages/" + fileName);
+                if (!imageFile.exists()) {
+                    responseMessage = "File not found";
+                    break;
+                }
+                byte[] imageData = Files.readAllBytes(imageFile.toPath());
+                responseMessage = request(in, out, command, imageData);
+                break;
+
+            case "RT":
+                if (parts.length != 2) {
+                    responseMessage = "Invalid command";
+                    break;
+                }
+                response = request(in, out, command, null);
+                if (!response.startsWith("OK")) {
+                    System.out.println(response);
+                    break;
+                }
+                System.out.println(response);
+                long dataSize = in.readLong();
+                StringBuilder data = new StringBuilder();
+                while (data.length() < dataSize) {
+                    data.append(in.readChar());
+                }
+
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter("temperature_data.txt", true))) {
+                    writer.write(data.toString());
+                } catch (IOException e) {
+                    System.err.println("Error writing temperature data: " + e.getMessage());
+                }
+                break;
+            case "RI":
+                if (parts.length != 2) {
+                    responseMessage = "Invalid command";
+                    break;
+                }
+                response = request(in, out, command, null);
+                if (!response.startsWith("OK")) {
+                    responseMessage = "OK";
+                }
+                long imageSize = in.readLong();
+
+                byte[] iData = new byte[(int) imageSize];
+                in.readFully(iData);
+
+                // Save byte array as image file
+                Path receivedImagesPath = Paths.get("receivedImages");
+                if (!Files.exists(receivedImagesPath)) {
+                    Files.createDirectory(receivedImagesPath);
+                }
+                Path imagePath = receivedImagesPath.resolve("image.jpg");
+                Files.write(imagePath, iData);
+                break;
+            default:
+                System.out.println("Invalid command");
+                break;
+        }
+
+        return responseMessage;
+    }
+
+    // While disconnected, temperature readings go to the offline buffer and everything else is refused
+    private String offlineCommand(String[] parts) {
+        if (!parts[0].equals("ET")) {
+            return "Offline, command not sent";
+        }
+        if (parts.length != 2) {
+            return "Invalid command";
+        }
+        float temperature;
+        try {
+            temperature = Float.parseFloat(parts[1]);
+        } catch (NumberFormatException e) {
+            return "Invalid command";
+        }
+        if (!offlineBuffer.append(System.currentTimeMillis(), temperature)) {
+            System.out.println("Offline buffer full, oldest reading dropped");
+        }
+        return "Offline, reading buffered (" + offlineBuffer.size() + " pending)";
+    }
+
+    // Called with connectionLock held
+    private void goOffline() {
+        closeQuietly(socket);
+        socket = null;
+        in = null;
+        out = null;
+        if (reconnecting) {
+            return;
+        }
+        reconnecting = true;
+        Thread thread = new Thread(this::reconnect, "reconnect");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Heartbeats get no reply, so they can go between any two commands. The same thread
+    // retries, with backoff, a backlog the server did not take while the connection is up.
+    private void sendHeartbeats() {
+        long lastBeat = System.currentTimeMillis();
+        while (true) {
+            long wait;
+            synchronized (connectionLock) {
+                long now = System.currentTimeMillis();
+                wait = lastBeat + HEARTBEAT_MILLIS - now;
+                if (out != null && !offlineBuffer.isEmpty()) {
+                    wait = Math.min(wait, uploadRetryAt - now);
+                }
+            }
+            try {
+                Thread.sleep(Math.max(1, wait));
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (connectionLock) {
+                long now = System.currentTimeMillis();
+                if (out == null) {
+                    lastBeat = now;
+                    continue;
+                }
+                if (!offlineBuffer.isEmpty() && now >= uploadRetryAt) {
+                    uploadOfflineReadings(); // renews the lease as well
+                    lastBeat = now;
+                    continue;
+                }
+                if (now - lastBeat < HEARTBEAT_MILLIS) {
+                    continue;
+                }
+                lastBeat = now;
+                try {
+                    out.writeObject("HB");
+                } catch (IOException e) {
+                    System.err.println("Error communicating with server: " + e.getMessage());
+                    goOffline();
+                }
+            }
+        }
+    }
+
+    // Reconnects in the background with exponential backoff, then uploads the backlog
+    private void reconnect() {
+        long delay = INITIAL_BACKOFF_MILLIS;
+        while (true) {
+            try {
+                Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (openConnection(null)) {
+                synchronized (connectionLock) {
+                    reconnecting = false;
+                    System.out.println();
+                    System.out.println("Reconnected to server");
+                    uploadBackoff = INITIAL_BACKOFF_MILLIS;
+                    uploadOfflineReadings();
+                }
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    // Sends buffered readings in batches, with their original timestamps. The server
+    // answers with the last sequence number it stored, so nothing is sent twice. If the
+    // server does not take them (READONLY, NOK-REPLICA, BUSY too often) the heartbeat
+    // thread tries again later. Called with connectionLock held.
+    private void uploadOfflineReadings() {
+        int uploaded = 0;
+        boolean refused = false;
+        try {
+            while (!offlineBuffer.isEmpty()) {
+                List<OfflineBuffer.Reading> batch = offlineBuffer.peek(UPLOAD_BATCH_SIZE);
+                StringBuilder lines = new StringBuilder();
+                for (OfflineBuffer.Reading reading : batch) {
+                    lines.append(reading.seq).append(",").append(reading.timestamp).append(",")
+                            .append(reading.value).append("\n");
+                }
+                String response = request(in, out, "ETB " + batch.size(), lines.toString());
+                if (!response.startsWith("OK ")) {
+                    System.out.println("Server did not accept buffered readings: " + response);
+                    refused = true;
+                    break;
+                }
+                int pending = offlineBuffer.size();
+                offlineBuffer.acknowledge(Long.parseLong(response.substring("OK ".length())));
+                uploaded += pending - offlineBuffer.size();
+                if (offlineBuffer.size() == pending) {
+                    refused = true; // nothing acknowledged
+                    break;
+                }
+            }
+            if (refused) {
+                uploadRetryAt = System.currentTimeMillis() + uploadBackoff
+                        + ThreadLocalRandom.current().nextLong(uploadBackoff / 2 + 1);
+                uploadBackoff = Math.min(uploadBackoff * 2, MAX_BACKOFF_MILLIS);
+            } else {
+                uploadBackoff = INITIAL_BACKOFF_MILLIS;
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error communicating with server: " + e.getMessage());
+            goOffline();
+        }
+        if (uploaded > 0) {
+            System.out.println("Uploaded " + uploaded + " buffered readings");
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    // Sends a command (and its payload, if any) and returns the server response,
+    // waiting and resending while the server answers BUSY <retry-after-ms>
+    private String request(ObjectInputStream in, ObjectOutputStream out, String command, Object payload)
+            throws IOException, ClassNotFoundException {
+        String response = "";
+        for (int attempt = 0; attempt <= MAX_BUSY_RETRIES; attempt++) {
+            out.writeObject(command);
+            if (payload != null) {
+                out.writeObject(payload);
+            }
+            response = (String) in.readObject();
+            if (!response.startsWith("BUSY ")) {
+                return response;
+            }
+            try {
+                Thread.sleep(Long.parseLong(response.substring("BUSY ".length())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return response;
+            }
+        }
+        return response;
+    }
+
+    private boolean handshake(Scanner scanner, ObjectInputStream in, ObjectOutputStream out)
+            throws IOException, ClassNotFoundException {
+        if (password == null) {
+            if (scanner == null) {
+                // Keep backing off; the console thread reads the password for us
+                if (!needsPassword) {
+                    needsPassword = true;
+                    System.out.println();
+                    System.out.print("Session expired, enter password to reconnect: ");
+                }
+                return false;
+            }
+            System.out.print("Enter password: ");
+            password = scanner.nextLine();
+        }
+
+        out.writeObject(userId);
+        out.writeObject(password);
+
+        String response = (String) in.readObject();
+        if (response.startsWith("BUSY ")) {
+            retryAfter = Long.parseLong(response.substring("BUSY ".length()));
+            return false;
+        }
+        if (response.startsWith("MOVED ")) {
+            // The cached routing table is stale
+            movedTo = response.substring("MOVED ".length());
+            forgetRoutes();
+            return false;
+        }
+
+        switch (response) {
+            case "WRONG-PWD":
+                password = null; // ask again on the next attempt
+                System.out.println("Invalid password");
+                System.out.println();
+                return false;
+            case "OK-NEW-USER":
+                System.out.println("User registered");
+                System.out.println();
+                break;
+            case "OK-USER":
+                System.out.println("User authenticated");
+                System.out.println();
+                break;
+            default:
+                System.out.println("Unexpected response from server: " + response);
+                System.out.println();
+                return false;
+        }
+        out.writeObject(Integer.toString(deviceId));
+
+        response = (String) in.readObject();
+
+        while (response.equals("NOK-DEVID")) {
+            if (scanner == null) {
+                return false; // the old connection still holds our id, retry later
+            }
+            System.out.println();
+            System.out.print("UserID:Device ID already in use, enter new ID: ");
+            deviceId = scanner.nextInt();
+            scanner.nextLine(); // consume newline character
+            out.writeObject(Integer.toString(deviceId));
+            response = (String) in.readObject();
+        }
+        if (response.equals("OK-DEVID")) {
+            System.out.println("Device ID registered");
+        }
+
+        out.writeObject((String) "IoTDevice.class");
+        String filePath = IoTDevice.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+        filePath = filePath + IoTDevice.class.getName().replace(".", "/") + ".class";
+
+        File file = new File(filePath);
+        int fileSize = (int) file.length();
+        out.writeObject(fileSize);
+
+        response = (String) in.readObject();
+
+        if (response.equals("NOK-TESTED")) {
+            System.out.println();
+            System.out.println("Program not validated by server");
+            return false;
+        }
+        System.out.println();
+        System.out.println("Program validated by server");
+
+        // Ask for a session token so the next connection can skip this handshake
+        out.writeObject("TOKEN");
+        response = (String) in.readObject();
+        if (response.startsWith("OK ")) {
+            saveSessionToken(response.split(" ")[1]);
+        }
+        return true;
+    }
+
+    private boolean resumeSession(ObjectInputStream in, ObjectOutputStream out)
+            throws IOException, ClassNotFoundException {
+        File tokenFile = sessionTokenFile();
+        if (!tokenFile.exists()) {
+            return false;
+        }
+        String token = new String(Files.readAllBytes(tokenFile.toPath())).trim();
+        out.writeObject("RESUME " + token);
+        String response = (String) in.readObject();
+        if (response.startsWith("BUSY ")) {
+            retryAfter = Long.parseLong(response.substring("BUSY ".length()));
+            return false;
+        }
+        if (!response.startsWith("OK-RESUMED ")) {
+            tokenFile.delete();
+            return false;
+        }
+        saveSessionToken(response.substring("OK-RESUMED ".length()));
+        System.out.println("Session resumed");
+        return true;
+    }
+
+    private void loadRoutes() {
+        if (!routesFile.exists()) {
+            return;
+        }
+        try {
+            routes = HashRing.parse(new String(Files.readAllBytes(routesFile.toPath())));
+            String[] owner = routes.ownerOfUser(userId).split(":");
+            serverAddress = owner[0];
+            serverPort = Integer.parseInt(owner[1]);
+        } catch (IOException | IllegalArgumentException e) {
+            forgetRoutes();
+        }
+    }
+
+    // Asks the server for the cluster routing table and caches it. Returns false if
+    // another node owns our user, in which case movedTo is set.
+    private boolean fetchRoutes(ObjectInputStream in, ObjectOutputStream out)
+            throws IOException, ClassNotFoundException {
+        out.writeObject("ROUTES");
+        String response = (String) in.readObject();
+        if (response.startsWith("BUSY ")) {
+            retryAfter = Long.parseLong(response.substring("BUSY ".length()));
+            return false;
+        }
+        routes = HashRing.parse(response);
+        if (routes.getNodes().size() == 1) {
+            // A single server names itself however it likes, keep the address we were given
+            routesFile.delete();
+            return true;
+        }
+        if (!routesFile.getParentFile().exists()) {
+            routesFile.getParentFile().mkdir();
+        }
+        Files.write(routesFile.toPath(), response.getBytes());
+
+        String owner = routes.ownerOfUser(userId);
+        if (!owner.equals(serverAddress + ":" + serverPort)) {
+            movedTo = owner;
+            return false;
+        }
+        return true;
+    }
+
+    private void forgetRoutes() {
+        routes = null;
+        routesFile.delete();
+    }
+
+    private void saveSessionToken(String token) throws IOException {
+        File tokenFile = sessionTokenFile();
+        if (!tokenFile.getParentFile().exists()) {
+            tokenFile.getParentFile().mkdir();
+        }
+        Files.write(tokenFile.toPath(), token.getBytes());
+    }
+
+    private File sessionTokenFile() {
+        return new File("clientSession", userId + "-" + deviceId + ".token");
+    }
+}
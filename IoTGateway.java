@@ -0,0 +1,364 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Field gateway that speaks for many devices of one user over a single connection.
+// Commands are entered as "<deviceId> <command>" (e.g. "7 ET 21.5"), plus
+// "REG <deviceId>" and "UNREG <deviceId>". Each device has one command in flight and
+// the next ones wait behind it, while replies are printed as they arrive, so a slow
+// device does not hold up the others. A command answered BUSY is sent again after the
+// server's hint, like IoTDevice does.
+public class IoTGateway {
+
+    // A device command sent and not yet answered
+    private static class Pending {
+        private final String frame;
+        private final Object payload;
+        private int busyRetries;
+
+        Pending(String frame, Object payload) {
+            this.frame = frame;
+            this.payload = payload;
+        }
+    }
+
+    private static final int MAX_BUSY_RETRIES = 5;
+    private static final int MAX_REDIRECTS = 3;
+    private static final long HEARTBEAT_MILLIS = Long.getLong("iot.heartbeat", 20) * 1000;
+
+    private String serverAddress;
+    private int serverPort;
+    private String userId;
+    private List<String> deviceIds;
+    private Socket socket;
+    private ObjectInputStream in;
+    private ObjectOutputStream out;
+    private final Map<String, ArrayDeque<Pending>> inFlight = new HashMap<>(); // device id -> commands, head sent
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "gateway-retries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) {
+        if (args.length != 4) {
+            System.out.println("Invalid number of arguments");
+            System.out.println("Usage: java IoTGateway <serverAddress> <serverPort> <userId> <deviceIds>");
+            System.out.println("deviceIds is a comma separated list of ids or ranges, e.g. 1-100,200");
+            return;
+        }
+        List<String> deviceIds;
+        try {
+            deviceIds = parseDeviceIds(args[3]);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid device ids: " + args[3]);
+            return;
+        }
+        new IoTGateway(args[0], Integer.parseInt(args[1]), args[2], deviceIds).start();
+    }
+
+    public IoTGateway(String serverAddress, int serverPort, String userId, List<String> deviceIds) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.userId = userId;
+        this.deviceIds = deviceIds;
+    }
+
+    public void start() {
+        try (Scanner scanner = new Scanner(System.in)) {
+            System.out.print("Enter password: ");
+            String password = scanner.nextLine();
+            if (!connect(password)) {
+                return;
+            }
+
+            Thread replies = new Thread(this::readReplies, "gateway-replies");
+            replies.setDaemon(true);
+            replies.start();
+
+            // Keeps the lease shared by all devices alive while nothing else is sent
+            Thread heartbeat = new Thread(this::sendHeartbeats, "heartbeat");
+            heartbeat.setDaemon(true);
+            heartbeat.start();
+
+            for (String deviceId : deviceIds) {
+                send("REG " + deviceId, null);
+            }
+
+            System.out.println();
+            System.out.println("----- IoT Gateway started for " + deviceIds.size() + " devices -----");
+            System.out.println();
+            System.out.println("Available commands:");
+            System.out.println();
+            System.out.println("REG <dev_id>");
+            System.out.println("UNREG <dev_id>");
+            System.out.println("<dev_id> CREATE <dm>");
+            System.out.println("<dev_id> ADD <user1> <dm>");
+            System.out.println("<dev_id> RD <dm>");
+            System.out.println("<dev_id> ET <float>");
+            System.out.println("<dev_id> EI <filename.jpg>");
+            System.out.println("<dev_id> RT <dm>");
+            System.out.println("<dev_id> RI <user-id>:<dev_id>");
+            System.out.println("<dev_id> WHO <dm>");
+
+            while (replies.isAlive()) {
+                String line = scanner.nextLine().trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split(" ");
+                if (parts[0].equals("REG") || parts[0].equals("UNREG")) {
+                    send(line, null);
+                    continue;
+                }
+                if (parts.length < 2 || parts[1].equals("REG") || parts[1].equals("UNREG")) {
+                    System.out.println("Invalid command");
+                    continue;
+                }
+                String command = line.substring(parts[0].length() + 1);
+                if (parts[1].equals("EI")) {
+                    File imageFile = new File("clientImages/" + (parts.length == 3 ? parts[2] : ""));
+                    if (parts.length != 3 || !imageFile.isFile()) {
+                        System.out.println("File not found");
+                        continue;
+                    }
+                    submit(parts[0], "@" + parts[0] + " " + command, Files.readAllBytes(imageFile.toPath()));
+                } else {
+                    submit(parts[0], "@" + parts[0] + " " + command, null);
+                }
+            }
+            System.out.println("Connection to server lost");
+        } catch (IOException e) {
+            System.err.println("Error communicating with server: " + e.getMessage());
+        } catch (NoSuchElementException e) {
+            // handle CTRL+C
+            System.out.println("Program terminated by user.");
+            System.exit(0);
+        }
+    }
+
+    // Frames from the console and the heartbeat thread must not interleave
+    private void send(String frame, Object payload) throws IOException {
+        synchronized (out) {
+            out.writeObject(frame);
+            if (payload != null) {
+                out.writeObject(payload);
+            }
+            out.reset();
+        }
+    }
+
+    // Sends the command now if the device has nothing in flight, otherwise after the ones before it
+    private void submit(String deviceId, String frame, Object payload) throws IOException {
+        Pending pending = new Pending(frame, payload);
+        synchronized (inFlight) {
+            ArrayDeque<Pending> queue = inFlight.computeIfAbsent(deviceId, id -> new ArrayDeque<>());
+            queue.add(pending);
+            if (queue.size() > 1) {
+                return;
+            }
+        }
+        send(frame, payload);
+    }
+
+    // The command in flight for the device got its final reply: send the next one, if any
+    private void completed(String deviceId) throws IOException {
+        Pending next;
+        synchronized (inFlight) {
+            ArrayDeque<Pending> queue = inFlight.get(deviceId);
+            if (queue == null) {
+                return;
+            }
+            queue.poll();
+            next = queue.peek();
+            if (next == null) {
+                inFlight.remove(deviceId);
+                return;
+            }
+        }
+        send(next.frame, next.payload);
+    }
+
+    // Returns false if the command in flight for the device already used up its retries
+    private boolean retryLater(String deviceId, long delayMillis) {
+        Pending pending;
+        synchronized (inFlight) {
+            ArrayDeque<Pending> queue = inFlight.get(deviceId);
+            pending = queue == null ? null : queue.peek();
+            if (pending == null || pending.busyRetries >= MAX_BUSY_RETRIES) {
+                return false;
+            }
+            pending.busyRetries++;
+        }
+        retries.schedule(() -> {
+            try {
+                send(pending.frame, pending.payload);
+            } catch (IOException e) {
+                // connection gone, the reply reader notices
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void sendHeartbeats() {
+        try {
+            while (true) {
+                Thread.sleep(HEARTBEAT_MILLIS);
+                send("HB", null);
+            }
+        } catch (InterruptedException | IOException e) {
+            // connection gone, the reply reader notices
+        }
+    }
+
+    // Opens the gateway session, following cluster redirects and honoring BUSY hints
+    private boolean connect(String password) {
+        int attempts = 0;
+        int redirects = 0;
+        while (attempts <= MAX_BUSY_RETRIES && redirects <= MAX_REDIRECTS) {
+            try {
+                socket = new Socket(serverAddress, serverPort);
+                in = new ObjectInputStream(socket.getInputStream());
+                out = new ObjectOutputStream(socket.getOutputStream());
+
+                out.writeObject(userId);
+                out.writeObject(password);
+                String response = (String) in.readObject();
+                if (response.startsWith("BUSY ")) {
+                    socket.close();
+                    attempts++;
+                    System.out.println("Server busy, retrying");
+                    Thread.sleep(Long.parseLong(response.substring("BUSY ".length())));
+                    continue;
+                }
+                if (response.startsWith("MOVED ")) {
+                    socket.close();
+                    redirects++;
+                    String[] owner = response.substring("MOVED ".length()).split(":");
+                    serverAddress = owner[0];
+                    serverPort = Integer.parseInt(owner[1]);
+                    continue;
+                }
+                if (!response.equals("OK-USER") && !response.equals("OK-NEW-USER")) {
+                    System.out.println(response.equals("WRONG-PWD") ? "Invalid password"
+                            : "Unexpected response from server: " + response);
+                    socket.close();
+                    return false;
+                }
+
+                out.writeObject("GATEWAY");
+                response = (String) in.readObject();
+                if (!response.equals("OK-GATEWAY")) {
+                    System.out.println("Server does not support gateways: " + response);
+                    socket.close();
+                    return false;
+                }
+
+                // The gateway is attested with the device program it is shipped with
+                out.writeObject("IoTDevice.class");
+                String filePath = IoTDevice.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+                filePath = filePath + IoTDevice.class.getName().replace(".", "/") + ".class";
+                out.writeObject((int) new File(filePath).length());
+                response = (String) in.readObject();
+                if (!response.equals("OK-TESTED")) {
+                    System.out.println("Program not validated by server");
+                    socket.close();
+                    return false;
+                }
+                System.out.println("Gateway connected to " + serverAddress + ":" + serverPort);
+                return true;
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Error communicating with server: " + e.getMessage());
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        System.out.println("Could not connect to server");
+        return false;
+    }
+
+    // Prints replies as "[<dev_id>] <CMD> <response>" and stores RT and RI data. A BUSY
+    // reply sends the command again after the hint instead of ending it.
+    private void readReplies() {
+        try {
+            while (true) {
+                String reply = (String) in.readObject();
+                if (!reply.startsWith("@")) {
+                    System.out.println(reply);
+                    continue;
+                }
+                String[] parts = reply.split(" ", 3);
+                String deviceId = parts[0].substring(1);
+                String command = parts.length > 1 ? parts[1] : "";
+                String response = parts.length > 2 ? parts[2] : "";
+                boolean deviceCommand = !command.equals("REG") && !command.equals("UNREG");
+                if (deviceCommand && response.startsWith("BUSY ")
+                        && retryLater(deviceId, Long.parseLong(response.substring("BUSY ".length())))) {
+                    continue;
+                }
+                System.out.println("[" + deviceId + "] " + command + " " + response);
+                if (deviceCommand) {
+                    completed(deviceId);
+                }
+                if (!response.equals("OK")) {
+                    continue;
+                }
+                if (command.equals("RT")) {
+                    String data = (String) in.readObject();
+                    try (BufferedWriter writer = new BufferedWriter(new FileWriter("temperature_data.txt", true))) {
+                        writer.write(data);
+                    } catch (IOException e) {
+                        System.err.println("Error writing temperature data: " + e.getMessage());
+                    }
+                } else if (command.equals("RI")) {
+                    byte[] image = (byte[]) in.readObject();
+                    Path receivedImagesPath = Paths.get("receivedImages");
+                    if (!Files.exists(receivedImagesPath)) {
+                        Files.createDirectory(receivedImagesPath);
+                    }
+                    Files.write(receivedImagesPath.resolve("image-" + deviceId + ".jpg"), image);
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already closed
+            }
+        }
+    }
+
+    private static List<String> parseDeviceIds(String list) {
+        List<String> ids = new ArrayList<>();
+        for (String item : list.split(",")) {
+            String[] range = item.split("-");
+            if (range.length == 2) {
+                for (int id = Integer.parseInt(range[0]); id <= Integer.parseInt(range[1]); id++) {
+                    ids.add(Integer.toString(id));
+                }
+            } else {
+                ids.add(Integer.toString(Integer.parseInt(item)));
+            }
+        }
+        return ids;
+    }
+}
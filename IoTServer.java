@@ -12,24 +12,55 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class IoTServer {
 
+    private static final String GATEWAY_ID = "GATEWAY"; // device id that opens a gateway session
+
     private int port;
     private Map<String, String> users; // map of user-id and password
     private Map<String, Set<String>> domains; // map of domain name (name) and associated devices (user-id:device-id)
     private Map<String, Map<String, String>> domainPermissions; // map of domain name and users and corresponding
     // permissions (read or owner)
     private Map<String, Float> temperatureData; // map of device-id and last temperature value
+    private Map<String, Long> temperatureTimes; // map of userId:device-id and when the last temperature was taken
+    private Map<String, Long> readingSeqs; // map of userId:device-id and last buffered reading stored (see ETB)
     private Map<String, String> imageData; // map of userId:device-id and last image data
-    private ArrayList<String> onlineUsers; // Map of Online User:deviceId
+    private Presence presence; // online userId:deviceId and the leases of client connections
+    private SessionTokens sessionTokens; // tokens that let a device resume without the full handshake
+    private RateLimiter rateLimiter; // per-device and per-user limits for each command class
+    private Semaphore connectionSlots; // caps concurrent client connections
+    private Semaphore pendingWrites; // bounds the commands waiting for the global lock and disk
+    private ThreadPoolExecutor rejector; // small bounded pool that answers BUSY to rejected connections
+    private long busyRetryMillis; // retry-after hint sent when the server is saturated
+    private long writeQueueWaitMillis; // how long a write waits for a slot before BUSY
+    private Cluster cluster; // which users and domains this node owns when sharded
+    private Replication replication; // ships state mutations to backups, or follows a primary
+    private ExecutorService gatewayWorkers; // runs the commands of devices behind gateways
+    private int gatewayQueueSize; // commands a gateway device may have waiting before BUSY
+    private int gatewayMaxDevices; // devices a single gateway session may register
+    private AsyncLogger log; // structured request log, written to logs/ by a background thread
+    private AtomicLong connectionIds = new AtomicLong(); // trace ids of client connections
 
     public static void main(String[] args) {
         IoTServer server = new IoTServer(args.length > 0 ? Integer.parseInt(args[0]) : 12345);
@@ -38,12 +69,28 @@ public class IoTServer {
 
     public IoTServer(int port) {
         this.port = port;
+        this.log = new AsyncLogger("iot-server-" + port);
         this.users = new HashMap<>();
         this.domains = new HashMap<>();
         this.domainPermissions = new HashMap<>();
         this.temperatureData = new HashMap<>();
+        this.temperatureTimes = new HashMap<>();
+        this.readingSeqs = new HashMap<>();
         this.imageData = new HashMap<>();
-        this.onlineUsers = new ArrayList<>();
+        this.presence = new Presence(Long.getLong("iot.presence.lease", 60) * 1000, log);
+        this.sessionTokens = new SessionTokens(Integer.getInteger("iot.session.max", 10000),
+                Long.getLong("iot.session.ttl", 600) * 1000);
+        this.rateLimiter = new RateLimiter();
+        this.connectionSlots = new Semaphore(Integer.getInteger("iot.maxConnections", 1000));
+        this.pendingWrites = new Semaphore(Integer.getInteger("iot.maxPendingWrites", 64));
+        this.rejector = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(64));
+        this.busyRetryMillis = Long.getLong("iot.busyRetry", 500);
+        this.writeQueueWaitMillis = Long.getLong("iot.writeQueueWait", 100);
+        this.cluster = Cluster.fromProperties(port);
+        this.replication = new Replication(new ReplicaTarget(), port, log);
+        this.gatewayWorkers = Executors.newFixedThreadPool(Integer.getInteger("iot.gateway.workers", 32));
+        this.gatewayQueueSize = Integer.getInteger("iot.gateway.queue", 32);
+        this.gatewayMaxDevices = Integer.getInteger("iot.gateway.maxDevices", 1000);
 
         // Create data directory if it doesn't exist
         File dataDir = new File("data");
@@ -56,6 +103,19 @@ public class IoTServer {
             imagesDir.mkdir();
         }
 
+        loadData();
+    }
+
+    // Loads the in-memory maps from the data files, creating missing files
+    private synchronized void loadData() {
+        users.clear();
+        domains.clear();
+        domainPermissions.clear();
+        temperatureData.clear();
+        temperatureTimes.clear();
+        imageData.clear();
+        readingSeqs.clear();
+
         // Load user data from file or create file if it doesn't exist
         File usersFile = new File("data/users.txt");
         if (usersFile.exists()) {
@@ -129,7 +189,7 @@ public class IoTServer {
                 System.err.println("Error creating temperatures file: " + e.getMessage());
             }
         } else {
-            // Load temperature data from file
+            // Load temperature data from file, with the time each one was taken when known
             try (BufferedReader reader = new BufferedReader(new FileReader(temperaturesFile))) {
                 String line;
                 while ((line = reader.readLine()) != null) {
@@ -137,6 +197,9 @@ public class IoTServer {
                     String userIdDeviceId = parts[0];
                     float temperature = Float.parseFloat(parts[1]);
                     temperatureData.put(userIdDeviceId, temperature);
+                    if (parts.length > 2) {
+                        temperatureTimes.put(userIdDeviceId, Long.parseLong(parts[2]));
+                    }
                 }
             } catch (IOException e) {
                 System.err.println("Error loading temperature data: " + e.getMessage());
@@ -163,15 +226,44 @@ public class IoTServer {
             }
         }
 
+        File sequencesFile = new File("data/sequences.txt");
+        if (!sequencesFile.exists()) {
+            try {
+                sequencesFile.createNewFile();
+            } catch (IOException e) {
+                System.err.println("Error creating sequences file: " + e.getMessage());
+            }
+        } else {
+            // Load last buffered reading stored for each device
+            try (BufferedReader reader = new BufferedReader(new FileReader(sequencesFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(",");
+                    readingSeqs.put(parts[0], Long.parseLong(parts[1]));
+                }
+            } catch (IOException e) {
+                System.err.println("Error loading sequences data: " + e.getMessage());
+            }
+        }
     }
 
     public void start() {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             System.out.println("IoTServer started on port " + port);
+            replication.startBackupIfConfigured();
+            if (replication.isBackup()) {
+                System.out.println("Running as read-only backup");
+            }
+            if (!cluster.isSingleNode()) {
+                System.out.println("Cluster node " + cluster.getSelf() + ": " + cluster.routingTable());
+            }
 
             while (true) {
                 Socket socket = serverSocket.accept();
-                System.out.println("A new client is connecting!");
+                if (!connectionSlots.tryAcquire()) {
+                    rejectConnection(socket);
+                    continue;
+                }
                 new ClientHandler(socket).start();
             }
         } catch (IOException e) {
@@ -179,6 +271,69 @@ public class IoTServer {
         }
     }
 
+    // Answers BUSY to a connection over the cap instead of queuing it. The first frame
+    // is read before closing so the client sees the reply rather than a reset.
+    private void rejectConnection(Socket socket) {
+        try {
+            rejector.execute(() -> {
+                try (Socket s = socket) {
+                    s.setSoTimeout(2000);
+                    ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+                    out.writeObject("BUSY " + busyRetryMillis);
+                    out.flush();
+                    new ObjectInputStream(s.getInputStream()).readObject();
+                } catch (IOException | ClassNotFoundException e) {
+                    // client went away, nothing to do
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already closed
+            }
+        }
+    }
+
+    private static boolean isWriteCommand(String command) {
+        switch (command) {
+            case "CREATE":
+            case "ADD":
+            case "RD":
+            case "ET":
+            case "ETB":
+            case "EI":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Commands followed by a second object (the image of EI, the readings of ETB)
+    private static boolean hasPayload(String command) {
+        return command.equals("EI") || command.equals("ETB");
+    }
+
+    // Returns 0 if the command may run, otherwise the retry-after hint for a BUSY reply.
+    // A write command that is admitted holds a pendingWrites slot the caller must release.
+    private long admit(String userId, String deviceId, String command) {
+        long retryAfter = rateLimiter.acquire(userId, deviceId, RateLimiter.commandClass(command));
+        if (retryAfter > 0 || !isWriteCommand(command)) {
+            return retryAfter;
+        }
+        if (replication.isLagging()) {
+            return busyRetryMillis; // backups are too far behind, keep the failover loss bounded
+        }
+        try {
+            if (pendingWrites.tryAcquire(writeQueueWaitMillis, TimeUnit.MILLISECONDS)) {
+                return 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return busyRetryMillis;
+    }
+
     private synchronized boolean authenticate(String userId, String password) {
         String storedPassword = users.get(userId);
         return storedPassword != null && storedPassword.equals(password);
@@ -195,15 +350,16 @@ public class IoTServer {
             writer.write(userId + "," + password);
             writer.newLine();
         } catch (IOException e) {
-            System.err.println("Error writing user data: " + e.getMessage());
+            log.error("storage_error", "msg", "Error writing user data", "error", e.getMessage());
         }
 
+        replication.append("USER " + userId + " " + password, null);
         return true;
     }
 
     private synchronized boolean registerDevice(String userId, String deviceId, String domain) {
         if (!domains.containsKey(domain)) {
-            System.out.println("Domain does not exist");
+            log.debug("register_device", "user", userId, "dev", deviceId, "dm", domain, "outcome", "NODM");
             return false; // domain does not exist
         }
         Set<String> devices = domains.get(domain);
@@ -220,7 +376,7 @@ public class IoTServer {
             }
         }
         if (!userExists) {
-            System.out.println("User does not exist in domain");
+            log.debug("register_device", "user", userId, "dev", deviceId, "dm", domain, "outcome", "NOPERM");
             return false; // user does not exist in domain
         }
 
@@ -257,8 +413,9 @@ public class IoTServer {
             }
         } catch (IOException e) {
             // handle the exception here, e.g. print an error message
-            System.err.println("Error: " + e.getMessage());
+            log.error("storage_error", "msg", "Error writing domain devices", "error", e.getMessage());
         }
+        replication.append("RD " + userId + " " + deviceId + " " + domain, null);
         return true;
     }
 
@@ -294,8 +451,9 @@ public class IoTServer {
             }
         } catch (IOException e) {
             // handle the exception here, e.g. print an error message
-            System.err.println("Error: " + e.getMessage());
+            log.error("storage_error", "msg", "Error writing domain permissions", "error", e.getMessage());
         }
+        replication.append("ADD " + userId + " " + domain, null);
         return true;
     }
 
@@ -327,8 +485,407 @@ public class IoTServer {
         return false;
     }
 
-    private synchronized boolean registerTemperatureData(String userId, String deviceId, float temperature) {
+    private synchronized boolean createDomain(String userId, String domain) {
+        if (domains.containsKey(domain)) {
+            return false; // domain already exists
+        }
+        domains.put(domain, new HashSet<>());
+        domainPermissions.put(domain, new HashMap<String, String>());
+        domainPermissions.get(domain).put(userId, "owner");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter("data/domains.txt", true))) {
+            writer.write(domain + ":" + ":" + ":" + ":" + userId);
+            writer.newLine();
+        } catch (IOException e) {
+            log.error("storage_error", "msg", "Error writing domain data", "error", e.getMessage());
+        }
+        replication.append("CREATE " + userId + " " + domain, null);
+        return true;
+    }
+
+    // Runs CREATE, ADD, RD, RT or WHO here if this node owns the domain, otherwise forwards
+    // it to the owner. RT data is appended to data.
+    private String routeDomainCommand(String userId, String deviceId, String[] parts, StringBuilder data) {
+        if (parts.length != (parts[0].equals("ADD") ? 3 : 2)) {
+            return "NOK";
+        }
+        String domain = parts[parts.length - 1];
+        if (cluster.ownsDomain(domain)) {
+            return executeDomainCommand(userId, deviceId, parts, data);
+        }
+        try {
+            String reply = (String) cluster.request(cluster.ownerOfDomain(domain),
+                    "DOMAIN " + userId + " " + deviceId + " " + String.join(" ", parts));
+            int newline = reply.indexOf('\n');
+            if (newline < 0) {
+                return reply;
+            }
+            data.append(reply.substring(newline + 1));
+            return reply.substring(0, newline);
+        } catch (IOException e) {
+            log.warn("peer_error", "error", e.getMessage());
+            return "NOK";
+        }
+    }
+
+    private String executeDomainCommand(String userId, String deviceId, String[] parts, StringBuilder data) {
+        String domain = parts[parts.length - 1];
+        switch (parts[0]) {
+            case "CREATE":
+                return createDomain(userId, domain) ? "OK" : "NOK";
+            case "ADD":
+                String userToAdd = parts[1];
+                if (!domainExists(userId, domain)) {
+                    return "NODM";
+                }
+                if (!hasDomainPermission(userId, domain)) {
+                    return "NOPERM";
+                }
+                if (!userExists(userToAdd)) {
+                    return "NOUSER";
+                }
+                if (!addDomainPermission(userToAdd, domain)) {
+                    return "NODM";
+                }
+                return "OK";
+            case "RD":
+                if (!domainExists(userId, domain)) {
+                    return "NODM";
+                }
+                if (!hasDomainPermission(userId, domain)) {
+                    return "NOPERM";
+                }
+                if (!registerDevice(userId, deviceId, domain)) {
+                    return "NODM";
+                }
+                return "OK";
+            case "RT":
+                if (!hasDomainPermission(userId, domain)) {
+                    return "NOPERM";
+                }
+                Set<String> devices = domains.get(domain);
+
+                if (devices == null || devices.isEmpty()) {
+                    return "NODM";
+                }
+                if ((devices.size() == 1 && devices.contains(":"))) {
+                    return "NODATA";
+                }
+                Map<String, Float> temperatures = lastTemperatures(devices);
+                for (String device : devices) {
+                    Float temperatureTS = temperatures.get(device);
+                    if (temperatureTS != null) {
+                        data.append("Device: ").append(device);
+                        data.append("  Last temperature: " + temperatureTS).append("\n");
+                        data.append("\n");
+                    }
+                }
+                return "OK";
+            case "WHO":
+                if (!hasDomainPermission(userId, domain)) {
+                    return "NOPERM";
+                }
+                List<String> online = onlineDevices(domainDevices(domain));
+                return online.isEmpty() ? "OK" : "OK " + String.join(",", online);
+            default:
+                return "NOK";
+        }
+    }
+
+    private synchronized Set<String> domainDevices(String domain) {
+        Set<String> devices = new HashSet<>(domains.get(domain));
+        devices.remove(":"); // placeholder of a domain created without devices
+        return devices;
+    }
+
+    // Presence lives on the node that owns the device's user, like its temperatures
+    private List<String> onlineDevices(Set<String> devices) {
+        List<String> result = new ArrayList<>();
+        Map<String, List<String>> byOwner = new HashMap<>();
+        for (String device : devices) {
+            byOwner.computeIfAbsent(cluster.ownerOfUser(device.substring(0, device.indexOf(':'))),
+                    o -> new ArrayList<>()).add(device);
+        }
+        for (Map.Entry<String, List<String>> entry : byOwner.entrySet()) {
+            if (entry.getKey().equals(cluster.getSelf())) {
+                result.addAll(presence.onlineOf(entry.getValue()));
+                continue;
+            }
+            try {
+                String reply = (String) cluster.request(entry.getKey(), "ONLINE " + String.join(",", entry.getValue()));
+                for (String device : reply.split(",")) {
+                    if (!device.isEmpty()) {
+                        result.add(device);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("peer_error", "error", e.getMessage());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private boolean userExists(String userId) {
+        if (cluster.ownsUser(userId)) {
+            return users.containsKey(userId);
+        }
+        try {
+            return "YES".equals(cluster.request(cluster.ownerOfUser(userId), "HASUSER " + userId));
+        } catch (IOException e) {
+            log.warn("peer_error", "error", e.getMessage());
+            return false;
+        }
+    }
+
+    // Temperatures live on the node that owns the device's user
+    private Map<String, Float> lastTemperatures(Set<String> devices) {
+        Map<String, Float> result = new HashMap<>();
+        Map<String, List<String>> remote = new HashMap<>();
+        for (String device : devices) {
+            String owner = cluster.ownerOfUser(device.substring(0, device.indexOf(':')));
+            if (owner.equals(cluster.getSelf())) {
+                Float temperature = temperatureData.get(device);
+                if (temperature != null) {
+                    result.put(device, temperature);
+                }
+            } else {
+                remote.computeIfAbsent(owner, o -> new ArrayList<>()).add(device);
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : remote.entrySet()) {
+            try {
+                String reply = (String) cluster.request(entry.getKey(), "TEMPS " + String.join(",", entry.getValue()));
+                for (String line : reply.split("\n")) {
+                    if (!line.isEmpty()) {
+                        String[] parts = line.split(",");
+                        result.put(parts[0], Float.parseFloat(parts[1]));
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("peer_error", "error", e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    // Domains are spread over the cluster, so ask the other nodes when no local domain grants access
+    private boolean canReadDevice(String userId, String userToRead, String deviceId) {
+        if (hasDomainPermission2(userId, userToRead, deviceId)) {
+            return true;
+        }
+        for (String peer : cluster.getPeers()) {
+            try {
+                if ("YES".equals(cluster.request(peer, "CANREAD " + userId + " " + userToRead + ":" + deviceId))) {
+                    return true;
+                }
+            } catch (IOException e) {
+                log.warn("peer_error", "error", e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private byte[] readImage(String userId, String deviceId) throws IOException {
+        if (cluster.ownsUser(userId)) {
+            return readLocalImage(userId + ":" + deviceId);
+        }
+        Object reply = cluster.request(cluster.ownerOfUser(userId), "IMAGE " + userId + ":" + deviceId);
+        return reply instanceof byte[] ? (byte[]) reply : null;
+    }
+
+    private byte[] readLocalImage(String device) throws IOException {
+        String fileName = imageData.get(device);
+        File imageFile = new File("images/" + fileName);
+        if (!imageFile.exists()) {
+            return null;
+        }
+        return Files.readAllBytes(imageFile.toPath());
+    }
+
+    // Reply to a device command; data is the temperatures (String) of RT or the image (byte[]) of RI
+    private static class Reply {
+        final String response;
+        final Object data;
+
+        Reply(String response, Object data) {
+            this.response = response;
+            this.data = data;
+        }
+    }
+
+    // Runs one device command; payload is the object sent after EI and ETB
+    private Reply executeCommand(String userId, String deviceId, String[] parts, Object payload)
+            throws IOException {
+        switch (parts[0]) {
+            case "CREATE":
+            case "ADD":
+            case "RD":
+            case "RT":
+            case "WHO":
+                StringBuilder data = new StringBuilder();
+                String response = routeDomainCommand(userId, deviceId, parts, data);
+                if (parts[0].equals("RT") && response.equals("OK")) {
+                    return new Reply(response, data.toString());
+                }
+                return new Reply(response, null);
+            case "ET":
+                if (parts.length != 2) {
+                    return new Reply("NOK", null);
+                }
+                float temperature;
+                try {
+                    temperature = Float.parseFloat(parts[1]);
+                } catch (NumberFormatException e) {
+                    return new Reply("NOK", null);
+                }
+                if (!registerTemperatureData(userId, deviceId, temperature, System.currentTimeMillis())) {
+                    return new Reply("NOK", null);
+                }
+                return new Reply("OK", null);
+            case "ETB":
+                long lastSeq = payload instanceof String ? registerTemperatureBatch(userId, deviceId, (String) payload)
+                        : -1;
+                return new Reply(lastSeq < 0 ? "NOK" : "OK " + lastSeq, null);
+            case "EI":
+                if (parts.length != 2 || !(payload instanceof byte[])) {
+                    return new Reply("NOK", null);
+                }
+                if (!registerImageData(userId, deviceId, parts[1], (byte[]) payload)) {
+                    return new Reply("NOK", null);
+                }
+                return new Reply("OK", null);
+            case "RI":
+                String[] deviceParts = parts.length == 2 ? parts[1].split(":") : null;
+                if (deviceParts == null || deviceParts.length != 2) {
+                    return new Reply("NOK", null);
+                }
+                String userToRead = deviceParts[0];
+                String deviceToRead = deviceParts[1];
+                if (!canReadDevice(userId, userToRead, deviceToRead)) {
+                    return new Reply("NOPERM", null);
+                }
+
+                byte[] imageData = readImage(userToRead, deviceToRead);
+                if (imageData == null) {
+                    return new Reply("NOID", null);
+                }
+                return new Reply("OK", imageData);
+            default:
+                return new Reply("Invalid command", null);
+        }
+    }
+
+    // Requests forwarded by other cluster nodes, see Cluster.request
+    private Object executePeerRequest(String request) throws IOException {
+        String[] parts = request.split(" ", 4);
+        switch (parts[0]) {
+            case "DOMAIN":
+                String[] command = parts[3].split(" ");
+                StringBuilder data = new StringBuilder();
+                String response = executeDomainCommand(parts[1], parts[2], command, data);
+                return command[0].equals("RT") && response.equals("OK") ? response + "\n" + data : response;
+            case "HASUSER":
+                return users.containsKey(parts[1]) ? "YES" : "NO";
+            case "TEMPS":
+                StringBuilder temperatures = new StringBuilder();
+                for (String device : parts[1].split(",")) {
+                    Float temperature = temperatureData.get(device);
+                    if (temperature != null) {
+                        temperatures.append(device).append(",").append(temperature).append("\n");
+                    }
+                }
+                return temperatures.toString();
+            case "CANREAD":
+                String[] target = parts[2].split(":");
+                return hasDomainPermission2(parts[1], target[0], target[1]) ? "YES" : "NO";
+            case "IMAGE":
+                byte[] image = readLocalImage(parts[1]);
+                return image != null ? image : "NOID";
+            case "ONLINE":
+                return String.join(",", presence.onlineOf(Arrays.asList(parts[1].split(","))));
+            default:
+                return "NOK";
+        }
+    }
+
+    private synchronized boolean registerTemperatureData(String userId, String deviceId, float temperature,
+            long timestamp) {
+        if (!storeTemperature(userId, deviceId, temperature, timestamp)) {
+            return false;
+        }
+        replication.append("ET " + userId + " " + deviceId + " " + temperature + " " + timestamp, null);
+        return true;
+    }
+
+    // Stores a batch of readings a device buffered while offline. Each line of the batch
+    // is "seq,timestamp,temperature"; readings at or below the last stored seq of the
+    // device were already acknowledged and are skipped. Returns the last stored seq, or
+    // -1 if the batch is malformed.
+    private synchronized long registerTemperatureBatch(String userId, String deviceId, String batch) {
+        String device = userId + ":" + deviceId;
+        long lastSeq = readingSeqs.getOrDefault(device, 0L);
+        StringBuilder accepted = new StringBuilder();
+        long newestTime = -1;
+        float newestTemperature = 0;
+        try {
+            for (String line : batch.split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split(",");
+                long seq = Long.parseLong(parts[0]);
+                long timestamp = Long.parseLong(parts[1]);
+                float temperature = Float.parseFloat(parts[2]);
+                if (seq <= lastSeq) {
+                    continue; // already stored
+                }
+                accepted.append(seq).append(",").append(timestamp).append(",").append(temperature).append("\n");
+                lastSeq = seq;
+                if (timestamp > newestTime) {
+                    newestTime = timestamp;
+                    newestTemperature = temperature;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return -1;
+        }
+        if (accepted.length() == 0) {
+            return lastSeq;
+        }
+
+        // Keep every buffered reading with its original timestamp
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter("data/readings.txt", true))) {
+            for (String line : accepted.toString().split("\n")) {
+                writer.write(device + "," + line);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            log.error("storage_error", "msg", "Error writing readings data", "error", e.getMessage());
+            return -1;
+        }
+
+        readingSeqs.put(device, lastSeq);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter("data/sequences.txt"))) {
+            for (Map.Entry<String, Long> entry : readingSeqs.entrySet()) {
+                writer.write(entry.getKey() + "," + entry.getValue());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            log.error("storage_error", "msg", "Error writing sequences data", "error", e.getMessage());
+        }
+
+        // A backlog only replaces the last temperature if it is newer than what we have
+        if (newestTime >= temperatureTimes.getOrDefault(device, 0L)) {
+            storeTemperature(userId, deviceId, newestTemperature, newestTime);
+        }
+
+        replication.append("ETB " + userId + " " + deviceId, accepted.toString().getBytes());
+        return lastSeq;
+    }
+
+    private boolean storeTemperature(String userId, String deviceId, float temperature, long timestamp) {
         temperatureData.put(userId + ":" + deviceId, temperature);
+        temperatureTimes.put(userId + ":" + deviceId, timestamp);
 
         // Update temperature data in file
         File temperaturesFile = new File("data/temperatures.txt");
@@ -339,19 +896,20 @@ public class IoTServer {
             while ((line = reader.readLine()) != null) {
                 String[] parts = line.split(",");
                 if (parts[0].equals(userId + ":" + deviceId)) {
-                    line = userId + ":" + deviceId + "," + temperature;
+                    line = userId + ":" + deviceId + "," + temperature + "," + timestamp;
                     found = true;
                 }
                 stringBuilder.append(line).append("\n");
             }
             if (!found) {
-                stringBuilder.append(userId).append(":").append(deviceId).append(",").append(temperature).append("\n");
+                stringBuilder.append(userId).append(":").append(deviceId).append(",").append(temperature).append(",")
+                        .append(timestamp).append("\n");
             }
             FileWriter writer = new FileWriter(temperaturesFile);
             writer.write(stringBuilder.toString());
             writer.close();
         } catch (IOException e) {
-            System.err.println("Error updating temperature data in file: " + e.getMessage());
+            log.error("storage_error", "msg", "Error updating temperature data in file", "error", e.getMessage());
             return false;
         }
 
@@ -382,7 +940,7 @@ public class IoTServer {
             writer.write(stringBuilder.toString());
             writer.close();
         } catch (IOException e) {
-            System.err.println("Error updating temperature data in file: " + e.getMessage());
+            log.error("storage_error", "msg", "Error updating temperature data in file", "error", e.getMessage());
             return false;
         }
 
@@ -390,7 +948,7 @@ public class IoTServer {
         File imagesFolder = new File("images");
         if (!imagesFolder.exists()) {
             if (!imagesFolder.mkdir()) {
-                System.err.println("Error creating images folder");
+                log.error("storage_error", "msg", "Error creating images folder");
                 return false;
             }
         }
@@ -400,13 +958,87 @@ public class IoTServer {
         try (FileOutputStream outputStream = new FileOutputStream(imageFile)) {
             outputStream.write(image);
         } catch (IOException e) {
-            System.err.println("Error saving image to file: " + e.getMessage());
+            log.error("storage_error", "msg", "Error saving image to file", "error", e.getMessage());
             return false;
         }
 
+        replication.append("EI " + userId + " " + deviceId + " " + fileName, image);
         return true;
     }
 
+    // Applies records and snapshots shipped by the primary when running as a backup
+    private class ReplicaTarget implements Replication.Target {
+
+        @Override
+        public void applyRecord(String record, byte[] payload) {
+            String[] parts = record.split(" ");
+            switch (parts[0]) {
+                case "USER":
+                    registerUser(parts[1], record.split(" ", 3)[2]);
+                    break;
+                case "CREATE":
+                    createDomain(parts[1], parts[2]);
+                    break;
+                case "ADD":
+                    addDomainPermission(parts[1], parts[2]);
+                    break;
+                case "RD":
+                    registerDevice(parts[1], parts[2], parts[3]);
+                    break;
+                case "ET":
+                    registerTemperatureData(parts[1], parts[2], Float.parseFloat(parts[3]), Long.parseLong(parts[4]));
+                    break;
+                case "ETB":
+                    registerTemperatureBatch(parts[1], parts[2], new String(payload));
+                    break;
+                case "EI":
+                    registerImageData(parts[1], parts[2], parts[3], payload);
+                    break;
+                default:
+                    log.warn("replication_unknown_record", "record", parts[0]);
+                    break;
+            }
+        }
+
+        @Override
+        public Replication.Snapshot takeSnapshot() {
+            // Holding the server lock keeps the files and the sequence number consistent
+            synchronized (IoTServer.this) {
+                HashMap<String, byte[]> files = new HashMap<>();
+                try {
+                    for (String name : new String[] { "users", "domains", "temperatures", "images", "sequences",
+                            "readings" }) {
+                        Path path = Paths.get("data/" + name + ".txt");
+                        files.put(path.toString(), Files.exists(path) ? Files.readAllBytes(path) : new byte[0]);
+                    }
+                    for (String fileName : imageData.values()) {
+                        File image = new File("images", fileName);
+                        if (image.exists()) {
+                            files.put("images/" + fileName, Files.readAllBytes(image.toPath()));
+                        }
+                    }
+                } catch (IOException e) {
+                    log.error("storage_error", "msg", "Error reading data for snapshot", "error", e.getMessage());
+                }
+                return new Replication.Snapshot(replication.getLastSeq(), files);
+            }
+        }
+
+        @Override
+        public void installSnapshot(Replication.Snapshot snapshot) {
+            synchronized (IoTServer.this) {
+                try {
+                    for (Map.Entry<String, byte[]> file : snapshot.files.entrySet()) {
+                        Files.write(Paths.get(file.getKey()), file.getValue());
+                    }
+                } catch (IOException e) {
+                    log.error("storage_error", "msg", "Error writing snapshot data", "error", e.getMessage());
+                }
+                loadData();
+            }
+        }
+    }
+
     private class ClientHandler extends Thread {
 
         private Socket socket;
@@ -417,224 +1049,454 @@ public class IoTServer {
 
         String userId = null;
         String deviceId = null;
+        boolean tested = false; // program attested, either now or by the session that issued the token
+        boolean holdingWriteSlot = false;
+        Presence.Session session; // lease of this connection, renewed by every frame
+        final String connectionId = "c" + connectionIds.incrementAndGet();
+        long requests = 0; // numbers the requests of this connection for their trace ids
+        String loginOutcome = "";
 
         @Override
         public void run() {
+            session = presence.open(socket);
+            String reason = "closed";
 
             try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
                     ObjectInputStream in = new ObjectInputStream(socket.getInputStream());) {
 
-                System.out.println("Client connected: " + socket.getInetAddress().getHostAddress());
-                userId = (String) in.readObject();
-                String password = (String) in.readObject();
+                log.info("connect", "conn", connectionId, "addr", socket.getInetAddress().getHostAddress());
+                String first = (String) in.readObject();
 
-                if (authenticate(userId, password)) {
-                    out.writeObject("OK-USER");
-                } else {
-                    if (registerUser(userId, password)) {
-                        out.writeObject("OK-NEW-USER");
+                // Any node hands out the routing table so clients can go straight to the owner
+                while (first.equals("ROUTES")) {
+                    out.writeObject(cluster.routingTable());
+                    first = (String) in.readObject();
+                    session.renew();
+                }
+                if (first.equals("PEER") || first.startsWith("PEER ")) {
+                    presence.detach(session);
+                    servePeer(in, out, first.length() > "PEER ".length() ? first.substring("PEER ".length()) : null);
+                    return;
+                }
+                if (first.startsWith("REPLICA ")) {
+                    presence.detach(session);
+                    replication.serveBackup(socket, in, out, first);
+                    return;
+                }
+
+                // A reconnecting device may present a session token instead of the full handshake
+                if (first.startsWith("RESUME ")) {
+                    if (resumeSession(first.substring("RESUME ".length()))) {
+                        loginOutcome = "OK-RESUMED";
+                        out.writeObject("OK-RESUMED " + sessionTokens.issue(userId, deviceId));
                     } else {
-                        out.writeObject("WRONG-PWD");
+                        out.writeObject("NOK-RESUME");
+                        first = (String) in.readObject();
                     }
                 }
+                if (!tested && !fullHandshake(first, in, out)) {
+                    return;
+                }
+                log.info("login", "conn", connectionId, "user", userId, "dev", deviceId, "outcome", loginOutcome,
+                        "tested", tested);
+                if (deviceId.equals(GATEWAY_ID)) {
+                    new GatewaySession(socket, session, connectionId, userId, tested, in, out).serve();
+                    return;
+                }
 
-                deviceId = (String) in.readObject();
+                while (true) {
+                    String command = (String) in.readObject();
+                    session.renew();
+                    if (command.equals("HB")) {
+                        continue; // heartbeats only renew the lease and get no reply
+                    }
+                    long start = System.nanoTime();
+                    AsyncLogger.setTrace(connectionId + "-" + (++requests));
+                    String[] parts = command.split(" ");
+                    Object payload = hasPayload(parts[0]) ? in.readObject() : null; // image of EI, readings of ETB
+
+                    // A backup only serves reads until it takes over as primary, and so does a
+                    // primary that lost its backups (one of them may be taking over)
+                    if (replication.isReadOnly() && isWriteCommand(parts[0])) {
+                        out.writeObject("READONLY");
+                        logRequest(parts[0], "READONLY", start);
+                        continue;
+                    }
+
+                    long retryAfter = admit(userId, deviceId, parts[0]);
+                    holdingWriteSlot = retryAfter == 0 && isWriteCommand(parts[0]);
+                    if (retryAfter > 0) {
+                        out.writeObject("BUSY " + retryAfter);
+                        logRequest(parts[0], "BUSY", start);
+                        continue;
+                    }
+
+                    Reply reply;
+                    if (parts[0].equals("TOKEN")) {
+                        reply = new Reply(tested ? "OK " + sessionTokens.issue(userId, deviceId) + " "
+                                + sessionTokens.getTtlMillis() / 1000 : "NOK", null);
+                    } else {
+                        reply = executeCommand(userId, deviceId, parts, payload);
+                    }
+                    if (reply.data instanceof String) {
+                        out.writeObject(reply.response);
+                        out.writeLong(((String) reply.data).length());
+                        out.writeChars((String) reply.data);
+                    } else if (reply.data instanceof byte[]) {
+                        out.writeObject(reply.response);
+                        out.writeLong(((byte[]) reply.data).length);
+                        out.write((byte[]) reply.data);
+                    }
 
-                while (onlineUsers.contains(userId + ":" + deviceId)) {
-                    out.writeObject("NOK-DEVID");
-                    deviceId = (String) in.readObject();
+                    releaseWriteSlot();
+                    if (!replication.awaitAck()) {
+                        reply = new Reply("NOK-REPLICA", null); // stored here, but not confirmed by the backups
+                    }
+                    out.writeObject(reply.response);
+                    logRequest(parts[0], reply.response, start);
                 }
 
-                out.writeObject("OK-DEVID");
-                onlineUsers.add(userId + ":" + deviceId);
+            } catch (SocketException e) {
+                reason = e.getMessage();
+            } catch (IOException | ClassNotFoundException e) {
+                reason = e.getClass().getSimpleName(); // EOFException when the client closes
+            } finally {
+                presence.close(session);
+                releaseWriteSlot();
+                connectionSlots.release();
+                AsyncLogger.clearTrace();
+                log.info("disconnect", "conn", connectionId, "user", userId, "dev", deviceId, "requests", requests,
+                        "reason", reason);
+            }
+        }
+
+        // Only the first word of the reply is logged, it may carry a session token
+        private void logRequest(String command, String response, long start) {
+            int space = response.indexOf(' ');
+            log.info("request", "conn", connectionId, "user", userId, "dev", deviceId, "cmd", command,
+                    "outcome", space < 0 ? response : response.substring(0, space),
+                    "dur_us", (System.nanoTime() - start) / 1000);
+        }
+
+        private void releaseWriteSlot() {
+            if (holdingWriteSlot) {
+                holdingWriteSlot = false;
+                pendingWrites.release();
+            }
+        }
 
-                String programName = (String) in.readObject();
-                int programSize = (Integer) in.readObject();
+        // Returns false if the user belongs to another node and the client was redirected,
+        // or if the password was rejected; either way the connection ends
+        private boolean fullHandshake(String first, ObjectInputStream in, ObjectOutputStream out)
+                throws IOException, ClassNotFoundException {
+            userId = first;
+            String password = (String) in.readObject();
 
-                File file = new File("IoTDevice.class");
-                if (file.exists() && file.isFile() && file.getName().equals(programName)
-                        && file.length() == programSize) {
-                    out.writeObject("OK-TESTED");
+            if (!cluster.ownsUser(userId)) {
+                out.writeObject("MOVED " + cluster.ownerOfUser(userId));
+                log.info("login", "conn", connectionId, "user", userId, "outcome", "MOVED");
+                return false;
+            }
+
+            if (authenticate(userId, password)) {
+                loginOutcome = "OK-USER";
+            } else if (replication.isReadOnly()) {
+                loginOutcome = "READONLY"; // backups cannot register users
+            } else {
+                if (registerUser(userId, password)) {
+                    loginOutcome = "OK-NEW-USER";
                 } else {
-                    out.writeObject("NOK-TESTED");
+                    loginOutcome = "WRONG-PWD";
                 }
+            }
+            out.writeObject(loginOutcome);
+            if (!loginOutcome.startsWith("OK-")) {
+                log.info("login", "conn", connectionId, "user", userId, "outcome", loginOutcome);
+                return false; // never claim a device id or issue a token without a valid password
+            }
+
+            deviceId = (String) in.readObject();
+
+            // A gateway registers its devices later, one by one, over this connection
+            while (!deviceId.equals(GATEWAY_ID) && !presence.claim(session, userId, deviceId)) {
+                out.writeObject("NOK-DEVID");
+                deviceId = (String) in.readObject();
+            }
+
+            out.writeObject(deviceId.equals(GATEWAY_ID) ? "OK-GATEWAY" : "OK-DEVID");
+
+            String programName = (String) in.readObject();
+            int programSize = (Integer) in.readObject();
 
+            File file = new File("IoTDevice.class");
+            if (file.exists() && file.isFile() && file.getName().equals(programName)
+                    && file.length() == programSize) {
+                tested = true;
+                out.writeObject("OK-TESTED");
+            } else {
+                out.writeObject("NOK-TESTED");
+            }
+            return true;
+        }
+
+        private void servePeer(ObjectInputStream in, ObjectOutputStream out, String secret)
+                throws IOException, ClassNotFoundException {
+            if (!cluster.isPeer(socket.getInetAddress(), secret)) {
+                out.writeObject("NOPERM");
+                return;
+            }
+            out.writeObject("OK-PEER");
+            while (true) {
+                String request = (String) in.readObject();
+                String[] parts = request.split(" ", 5);
+                Object reply;
+                if (parts[0].equals("DOMAIN") && parts.length > 3 && isWriteCommand(parts[3])
+                        && replication.isReadOnly()) {
+                    reply = "READONLY";
+                } else {
+                    reply = executePeerRequest(request);
+                    if (!replication.awaitAck()) {
+                        reply = "NOK-REPLICA";
+                    }
+                }
+                out.writeObject(reply);
+                out.reset();
+            }
+        }
+
+        private boolean resumeSession(String token) {
+            String[] resumed = sessionTokens.redeem(token);
+            if (resumed == null) {
+                return false;
+            }
+            if (!resumed[1].equals(GATEWAY_ID)) {
+                presence.takeOver(session, resumed[0], resumed[1]); // closes the connection it replaces
+            }
+            userId = resumed[0];
+            deviceId = resumed[1];
+            tested = true;
+            return true;
+        }
+    }
+
+    // One authenticated connection carrying the commands of many devices of the same user.
+    // Frames are "REG <dev>", "UNREG <dev>", "TOKEN" and "@<dev> <command>" (followed by the
+    // image or readings for EI and ETB). Replies to device frames are "@<dev> <CMD> <response>",
+    // followed by the temperatures or image for a successful RT or RI. Each device runs its
+    // commands in order on the shared gatewayWorkers pool, so a slow device does not hold
+    // up the others; a device with too many commands waiting gets BUSY. The devices share
+    // the lease of the connection, which any frame, including "HB", renews.
+    private class GatewaySession {
+
+        private final Socket socket;
+        private final Presence.Session session;
+        private final String connectionId;
+        private final AtomicLong requests = new AtomicLong();
+        private final String userId;
+        private final boolean tested;
+        private final ObjectInputStream in;
+        private final ObjectOutputStream out;
+        private final Map<String, DeviceQueue> devices = new ConcurrentHashMap<>();
+
+        GatewaySession(Socket socket, Presence.Session session, String connectionId, String userId, boolean tested,
+                ObjectInputStream in, ObjectOutputStream out) {
+            this.socket = socket;
+            this.session = session;
+            this.connectionId = connectionId;
+            this.userId = userId;
+            this.tested = tested;
+            this.in = in;
+            this.out = out;
+        }
+
+        void serve() throws IOException, ClassNotFoundException {
+            try {
                 while (true) {
-                    String command = (String) in.readObject();
-                    String[] parts = command.split(" ");
-                    String response = "";
+                    String frame = (String) in.readObject();
+                    session.renew();
+                    if (frame.equals("HB")) {
+                        continue;
+                    }
+                    if (frame.startsWith("@")) {
+                        int space = frame.indexOf(' ');
+                        String device = space < 0 ? frame.substring(1) : frame.substring(1, space);
+                        String[] parts = (space < 0 ? "" : frame.substring(space + 1)).split(" ");
+                        Object payload = hasPayload(parts[0]) ? in.readObject() : null;
+
+                        String tag = "@" + device + " " + parts[0];
+                        String trace = connectionId + "-" + requests.incrementAndGet();
+                        long start = System.nanoTime();
+                        DeviceQueue queue = devices.get(device);
+                        if (queue != null && !presence.holds(session, userId, device)) {
+                            devices.remove(device).close(); // a resumed device session took the id over
+                            queue = null;
+                        }
+                        if (queue == null) {
+                            send(tag, new Reply("NOK-DEVID", null));
+                            logRequest(trace, device, parts[0], "NOK-DEVID", start);
+                        } else if (!queue.offer(() -> execute(tag, trace, start, device, parts, payload))) {
+                            send(tag, new Reply("BUSY " + busyRetryMillis, null));
+                            logRequest(trace, device, parts[0], "BUSY", start);
+                        }
+                        continue;
+                    }
 
+                    String[] parts = frame.split(" ");
                     switch (parts[0]) {
-                        case "CREATE":
-                            if (parts.length != 2) {
-                                response = "NOK";
-                                break;
-                            }
-                            String domain = parts[1];
-                            if (domains.containsKey(domain)) {
-                                response = "NOK";
-                                break;
-                            }
-                            domains.put(domain, new HashSet<>());
-                            domainPermissions.put(domain, new HashMap<String, String>());
-                            domainPermissions.get(domain).put(userId, "owner");
-                            try (BufferedWriter writer = new BufferedWriter(new FileWriter("data/domains.txt", true))) {
-                                writer.write(domain + ":" + ":" + ":" + ":" + userId);
-                                writer.newLine();
-                            } catch (IOException e) {
-                                System.err.println("Error writing domain data: " + e.getMessage());
-                            }
-                            response = "OK";
-                            break;
-                        case "ADD":
-                            if (parts.length != 3) {
-                                response = "NOK";
-                                break;
-                            }
-                            String userToAdd = parts[1];
-                            String domainToAdd = parts[2];
-                            if (!domainExists(userId, domainToAdd)) {
-                                response = "NODM";
-                                break;
-                            }
-                            if (!hasDomainPermission(userId, domainToAdd)) {
-                                response = "NOPERM";
+                        case "REG":
+                            if (parts.length != 2 || parts[1].equals(GATEWAY_ID)) {
+                                send(null, new Reply("NOK", null));
                                 break;
                             }
-                            if (!users.containsKey(userToAdd)) {
-                                response = "NOUSER";
-                                break;
+                            if (devices.containsKey(parts[1]) && !presence.holds(session, userId, parts[1])) {
+                                devices.remove(parts[1]).close(); // taken over by a resumed session meanwhile
                             }
-                            if (!addDomainPermission(userToAdd, domainToAdd)) {
-                                response = "NODM";
-                                break;
+                            if (devices.containsKey(parts[1])) {
+                                send("@" + parts[1] + " REG", new Reply("OK-DEVID", null));
+                            } else if (devices.size() >= gatewayMaxDevices) {
+                                send("@" + parts[1] + " REG", new Reply("NOK-LIMIT", null));
+                            } else if (presence.claim(session, userId, parts[1])) {
+                                devices.put(parts[1], new DeviceQueue());
+                                send("@" + parts[1] + " REG", new Reply("OK-DEVID", null));
+                            } else {
+                                send("@" + parts[1] + " REG", new Reply("NOK-DEVID", null));
                             }
-                            response = "OK";
                             break;
-                        case "RD":
+                        case "UNREG":
                             if (parts.length != 2) {
-                                response = "NOK";
-                                break;
+                                send(null, new Reply("NOK", null));
+                            } else if (devices.containsKey(parts[1])) {
+                                devices.remove(parts[1]).close();
+                                presence.release(session, userId, parts[1]);
+                                send("@" + parts[1] + " UNREG", new Reply("OK", null));
+                            } else {
+                                send("@" + parts[1] + " UNREG", new Reply("NOK-DEVID", null));
                             }
-                            String domainToRegister = parts[1];
-                            if (!domainExists(userId, domainToRegister)) {
-                                response = "NODM";
-                                break;
-                            }
-                            if (!hasDomainPermission(userId, domainToRegister)) {
-                                response = "NOPERM";
-                                break;
-                            }
-                            if (!registerDevice(userId, deviceId, domainToRegister)) {
-                                response = "NODM";
-                                break;
-                            }
-                            response = "OK";
                             break;
-                        case "ET":
-                            if (parts.length != 2) {
-                                response = "NOK";
-                                break;
-                            }
-                            try {
-                                Float.parseFloat(parts[1]);
-                            } catch (NumberFormatException e) {
-                                response = "NOK";
-                                break;
-                            }
-                            float temperature = Float.parseFloat(parts[1]);
-                            if (!registerTemperatureData(userId, deviceId, temperature)) {
-                                response = "NOK";
-                                break;
-                            }
-                            response = "OK";
+                        case "TOKEN":
+                            send(null, new Reply(tested ? "OK " + sessionTokens.issue(userId, GATEWAY_ID) + " "
+                                    + sessionTokens.getTtlMillis() / 1000 : "NOK", null));
                             break;
-                        case "EI":
-                            if (parts.length != 2) {
-                                response = "NOK";
-                                break;
-                            }
-                            if (!registerImageData(userId, deviceId, parts[1], (byte[]) in.readObject())) {
-                                response = "NOK";
-                                break;
-                            }
-                            response = "OK";
+                        default:
+                            send(null, new Reply("Invalid command", null));
                             break;
-                        case "RT":
-                            if (parts.length != 2) {
-                                response = "NOK";
-                                break;
-                            }
-                            String domainToRead = parts[1];
-                            if (!hasDomainPermission(userId, domainToRead)) {
-                                response = "NOPERM";
-                                break;
-                            }
-                            Set<String> devices = domains.get(domainToRead);
+                    }
+                }
+            } finally {
+                // Commands still waiting are dropped; their ids are freed with the connection's lease
+                for (DeviceQueue queue : devices.values()) {
+                    queue.close();
+                }
+                devices.clear();
+            }
+        }
 
-                            if (devices == null || devices.isEmpty()) {
-                                response = "NODM";
-                                break;
-                            }
-                            if ((devices.size() == 1 && devices.contains(":"))) {
-                                response = "NODATA";
-                                break;
-                            }
-                            StringBuilder data = new StringBuilder();
-                            for (String device : devices) {
-                                Float temperatureTS = temperatureData.get(device);
-                                if (temperatureTS != null) {
-                                    data.append("Device: ").append(device);
-                                    data.append("  Last temperature: " + temperatureTS).append("\n");
-                                    data.append("\n");
-                                }
+        // Runs on a gateway worker; start is when the frame arrived, so queueing counts in dur_us
+        private void execute(String tag, String trace, long start, String deviceId, String[] parts, Object payload) {
+            AsyncLogger.setTrace(trace);
+            Reply reply = new Reply("NOK", null);
+            try {
+                if (replication.isReadOnly() && isWriteCommand(parts[0])) {
+                    reply = new Reply("READONLY", null);
+                } else {
+                    long retryAfter = admit(userId, deviceId, parts[0]);
+                    if (retryAfter > 0) {
+                        reply = new Reply("BUSY " + retryAfter, null);
+                    } else {
+                        try {
+                            reply = executeCommand(userId, deviceId, parts, payload);
+                        } catch (IOException e) {
+                            log.warn("command_error", "cmd", parts[0], "error", e.getMessage());
+                        } finally {
+                            if (isWriteCommand(parts[0])) {
+                                pendingWrites.release();
                             }
+                        }
+                        if (!replication.awaitAck()) {
+                            reply = new Reply("NOK-REPLICA", null);
+                        }
+                    }
+                }
+                send(tag, reply);
+            } catch (IOException e) {
+                // The gateway is gone; closing the socket ends serve() and frees its devices
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // already closed
+                }
+            } finally {
+                logRequest(trace, deviceId, parts[0], reply.response, start);
+            }
+        }
 
-                            response = "OK";
-                            out.writeObject(response);
-                            out.writeLong(data.length());
-                            out.writeChars(data.toString());
-                            break;
+        private void logRequest(String trace, String deviceId, String command, String response, long start) {
+            int space = response.indexOf(' ');
+            AsyncLogger.setTrace(trace);
+            log.info("request", "conn", connectionId, "user", userId, "dev", deviceId, "cmd", command,
+                    "outcome", space < 0 ? response : response.substring(0, space),
+                    "dur_us", (System.nanoTime() - start) / 1000);
+            AsyncLogger.clearTrace();
+        }
 
-                        case "RI":
-                            if (parts.length != 2) {
-                                response = "NOK";
-                                break;
-                            }
-                            String[] deviceParts = parts[1].split(":");
-                            String userToRead = deviceParts[0];
-                            String deviceToRead = deviceParts[1];
-                            if (!hasDomainPermission2(userId, userToRead, deviceToRead)) {
-                                response = "NOPERM";
-                                break;
-                            }
+        // Replies are written whole, so frames of different devices never interleave
+        private void send(String tag, Reply reply) throws IOException {
+            synchronized (out) {
+                out.writeObject(tag == null ? reply.response : tag + " " + reply.response);
+                if (reply.data != null) {
+                    out.writeObject(reply.data);
+                }
+                out.reset();
+            }
+        }
 
-                            String fileName = imageData.get(userToRead + ":" + deviceToRead);
-                            File imageFile = new File("images/" + fileName);
-                            if (!imageFile.exists()) {
-                                response = "NOID";
-                                break;
-                            }
-                            byte[] imageData = Files.readAllBytes(imageFile.toPath());
-                            response = "OK";
-                            out.writeObject(response);
-                            out.writeLong(imageData.length);
-                            out.write(imageData);
-                            break;
-                        default:
-                            response = "Invalid command";
-                            break;
-                    }
+        // Commands of one device, run one at a time and in arrival order
+        private class DeviceQueue {
+
+            private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+            private boolean running;
+            private boolean closed;
 
-                    out.writeObject(response);
+            synchronized boolean offer(Runnable task) {
+                if (closed || pending.size() >= gatewayQueueSize) {
+                    return false;
                 }
+                pending.add(task);
+                if (!running) {
+                    running = true;
+                    gatewayWorkers.execute(this::runNext);
+                }
+                return true;
+            }
 
-            } catch (SocketException e) {
-                System.out.println(userId + " has left");
-                onlineUsers.remove(userId + ":" + deviceId);
-            } catch (IOException | ClassNotFoundException e) {
-                onlineUsers.remove(userId + ":" + deviceId);
+            // The device left the session: commands not started yet will not run
+            synchronized void close() {
+                closed = true;
+                pending.clear();
+            }
+
+            // Runs one command and then yields the worker, so busy devices take turns
+            private void runNext() {
+                Runnable task;
+                synchronized (this) {
+                    task = pending.poll();
+                    if (task == null) {
+                        running = false; // closed while waiting for a worker
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } finally {
+                    synchronized (this) {
+                        if (pending.isEmpty()) {
+                            running = false;
+                        } else {
+                            gatewayWorkers.execute(this::runNext);
+                        }
+                    }
+                }
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,469 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator: simulates many IoTDevice clients against an IoTServer.
+// Each simulated device runs the same handshake as IoTDevice and then sends a
+// weighted mix of ET/EI/RT/RI commands at a fixed rate. Scheduling is open-loop:
+// every request has an intended send time and latency is measured from it, so a
+// slow server shows up as latency instead of silently lowering the offered load.
+public class LoadGenerator {
+
+    private static final String[] COMMANDS = { "ET", "EI", "RT", "RI" };
+
+    private String serverAddress;
+    private int serverPort;
+    private int devices = 100; // number of simulated devices (one connection each)
+    private int users = 10; // devices are spread over this many users
+    private int deviceBase = 1000; // first device id used
+    private double rate = 1.0; // requests per second per device
+    private int duration = 30; // measured seconds
+    private int ramp = 5; // seconds used to open all connections
+    private int imageSize = 4096; // bytes sent per EI
+    private String password = "loadgen";
+    private int[] mix = { 70, 5, 20, 5 }; // weights for ET, EI, RT, RI
+
+    private int programSize;
+    private HashRing routes; // cluster routing table, used to connect each device to its owner node
+    private long startNanos; // start of the measured window
+    private long endNanos;
+
+    private final Histogram[] latencies = new Histogram[COMMANDS.length];
+    private final Map<String, LongAdder> codes = new ConcurrentHashMap<>(); // "<cmd> <response>" -> count
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder handshakeFailures = new LongAdder();
+    private final LongAdder connected = new LongAdder();
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length % 2 != 0) {
+            printUsage();
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]));
+        try {
+            for (int i = 2; i < args.length; i += 2) {
+                generator.setOption(args[i], args[i + 1]);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            return;
+        }
+        generator.run();
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java LoadGenerator <serverAddress> <serverPort> [options]");
+        System.out.println("  --devices <n>      simulated devices (default 100)");
+        System.out.println("  --users <n>        users the devices are spread over (default 10)");
+        System.out.println("  --device-base <n>  first device id (default 1000)");
+        System.out.println("  --rate <r>         requests per second per device (default 1)");
+        System.out.println("  --duration <s>     measured seconds (default 30)");
+        System.out.println("  --ramp <s>         seconds to open all connections (default 5)");
+        System.out.println("  --mix <spec>       command weights, e.g. ET=70,EI=5,RT=20,RI=5");
+        System.out.println("  --image-size <b>   bytes per EI image (default 4096)");
+        System.out.println("  --password <p>     password used for every simulated user");
+    }
+
+    public LoadGenerator(String serverAddress, int serverPort) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    private void setOption(String name, String value) {
+        switch (name) {
+            case "--devices":
+                devices = Integer.parseInt(value);
+                break;
+            case "--users":
+                users = Integer.parseInt(value);
+                break;
+            case "--device-base":
+                deviceBase = Integer.parseInt(value);
+                break;
+            case "--rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "--duration":
+                duration = Integer.parseInt(value);
+                break;
+            case "--ramp":
+                ramp = Integer.parseInt(value);
+                break;
+            case "--image-size":
+                imageSize = Integer.parseInt(value);
+                break;
+            case "--password":
+                password = value;
+                break;
+            case "--mix":
+                mix = parseMix(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + name);
+        }
+        if (devices <= 0 || users <= 0 || rate <= 0 || duration <= 0 || ramp < 0) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    private static int[] parseMix(String spec) {
+        int[] weights = new int[COMMANDS.length];
+        int total = 0;
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            int index = commandIndex(parts[0].trim().toUpperCase());
+            if (parts.length != 2 || index < 0) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            weights[index] = Integer.parseInt(parts[1].trim());
+            total += weights[index];
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Mix must have at least one positive weight");
+        }
+        return weights;
+    }
+
+    private static int commandIndex(String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void run() {
+        // Same lookup IoTDevice uses to attest itself to the server
+        String filePath = IoTDevice.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+        filePath = filePath + IoTDevice.class.getName().replace(".", "/") + ".class";
+        programSize = (int) new File(filePath).length();
+
+        try {
+            routes = fetchRoutes();
+        } catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
+            System.out.println("Could not fetch routing table from " + serverAddress + ":" + serverPort + ": "
+                    + e.getMessage());
+            return;
+        }
+        if (routes.getNodes().size() > 1) {
+            System.out.println("Cluster: " + routes);
+        }
+
+        System.out.println("Load generator: " + devices + " devices, " + users + " users, " + rate
+                + " req/s per device, " + duration + "s against " + serverAddress + ":" + serverPort);
+
+        long now = System.nanoTime();
+        startNanos = now + ramp * 1_000_000_000L;
+        endNanos = startNanos + duration * 1_000_000_000L;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < devices; i++) {
+            long connectAt = now + (long) ((double) ramp * 1_000_000_000L * i / devices);
+            Thread thread = new Thread(new SimulatedDevice(i, connectAt), "device-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        reportProgress();
+
+        for (Thread thread : threads) {
+            try {
+                thread.join(Math.max(1, (endNanos - System.nanoTime()) / 1_000_000 + 5000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        printSummary();
+    }
+
+    private HashRing fetchRoutes() throws IOException, ClassNotFoundException {
+        try (Socket socket = new Socket(serverAddress, serverPort);
+                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
+            out.writeObject("ROUTES");
+            return HashRing.parse((String) in.readObject());
+        }
+    }
+
+    private void reportProgress() {
+        long last = 0;
+        long nextReport = startNanos;
+        while (System.nanoTime() < endNanos) {
+            sleepUntil(Math.min(nextReport, endNanos));
+            long total = completed.sum();
+            if (System.nanoTime() >= startNanos) {
+                System.out.println(String.format("[%3ds] connected=%d throughput=%d req/s errors=%d",
+                        (System.nanoTime() - startNanos) / 1_000_000_000L, connected.sum(), total - last,
+                        handshakeFailures.sum()));
+            }
+            last = total;
+            nextReport += 1_000_000_000L;
+        }
+    }
+
+    private void printSummary() {
+        long total = completed.sum();
+        System.out.println();
+        System.out.println("----- Load generator summary -----");
+        System.out.println("Connected devices: " + connected.sum() + "/" + devices);
+        System.out.println("Handshake failures: " + handshakeFailures.sum());
+        System.out.println("Completed requests: " + total);
+        System.out.println(String.format("Throughput: %.1f req/s (offered %.1f req/s)", (double) total / duration,
+                rate * devices));
+        System.out.println();
+        System.out.println(String.format("%-4s %9s %9s %9s %9s %9s %9s", "CMD", "count", "p50 ms", "p90 ms",
+                "p99 ms", "p99.9 ms", "max ms"));
+        for (int i = 0; i < COMMANDS.length; i++) {
+            Histogram h = latencies[i];
+            if (h.count() == 0) {
+                continue;
+            }
+            System.out.println(String.format("%-4s %9d %9.2f %9.2f %9.2f %9.2f %9.2f", COMMANDS[i], h.count(),
+                    h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+                    h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+        }
+        System.out.println();
+        System.out.println("Responses:");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(codes).entrySet()) {
+            System.out.println(String.format("  %-24s %d", entry.getKey(), entry.getValue().sum()));
+        }
+    }
+
+    private void count(String key) {
+        codes.computeIfAbsent(key, k -> new LongAdder()).increment();
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private class SimulatedDevice implements Runnable {
+
+        private final long connectAt;
+        private final String userId;
+        private final String deviceId;
+        private final String domain;
+        private final byte[] image;
+
+        private ObjectOutputStream out;
+        private ObjectInputStream in;
+
+        SimulatedDevice(int index, long connectAt) {
+            this.connectAt = connectAt;
+            this.userId = "lg" + (index % users);
+            this.deviceId = Integer.toString(deviceBase + index);
+            this.domain = "lgdom" + (index % users);
+            this.image = new byte[imageSize];
+            ThreadLocalRandom.current().nextBytes(image);
+        }
+
+        @Override
+        public void run() {
+            sleepUntil(connectAt);
+            // A single server may name itself differently from how we reach it
+            String[] node = routes.getNodes().size() > 1 ? routes.ownerOfUser(userId).split(":")
+                    : new String[] { serverAddress, Integer.toString(serverPort) };
+            try (Socket socket = new Socket(node[0], Integer.parseInt(node[1]))) {
+                in = new ObjectInputStream(socket.getInputStream());
+                out = new ObjectOutputStream(socket.getOutputStream());
+
+                if (!handshake()) {
+                    handshakeFailures.increment();
+                    return;
+                }
+                connected.increment();
+
+                // Make sure the device belongs to a domain and has data, so RT and RI have something to read
+                send("CREATE " + domain, null);
+                send("RD " + domain, null);
+                send("ET 20.0", null);
+                send("EI " + imageName(), image);
+
+                // Open-loop schedule: intended times are fixed up front, starting at a random phase
+                long interval = (long) (1_000_000_000L / rate);
+                long intended = startNanos + ThreadLocalRandom.current().nextLong(interval);
+                while (intended < endNanos) {
+                    sleepUntil(intended);
+                    int command = pickCommand();
+                    String response = execute(command);
+                    latencies[command].record((System.nanoTime() - intended) / 1000);
+                    completed.increment();
+                    count(COMMANDS[command] + " " + response.split(" ")[0]);
+                    intended += interval;
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                count("IO-ERROR " + e.getClass().getSimpleName());
+            } finally {
+                if (out == null) {
+                    handshakeFailures.increment();
+                }
+            }
+        }
+
+        private boolean handshake() throws IOException, ClassNotFoundException {
+            out.writeObject(userId);
+            out.writeObject(password);
+            String response = (String) in.readObject();
+            if (!response.equals("OK-USER") && !response.equals("OK-NEW-USER")) {
+                count("HANDSHAKE " + response);
+                return false;
+            }
+
+            out.writeObject(deviceId);
+            response = (String) in.readObject();
+            if (!response.equals("OK-DEVID")) {
+                count("HANDSHAKE " + response);
+                return false;
+            }
+
+            out.writeObject("IoTDevice.class");
+            out.writeObject(programSize);
+            response = (String) in.readObject();
+            if (!response.equals("OK-TESTED")) {
+                count("HANDSHAKE " + response);
+                return false;
+            }
+            return true;
+        }
+
+        private int pickCommand() {
+            int total = 0;
+            for (int weight : mix) {
+                total += weight;
+            }
+            int pick = ThreadLocalRandom.current().nextInt(total);
+            for (int i = 0; i < mix.length; i++) {
+                pick -= mix[i];
+                if (pick < 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        private String execute(int command) throws IOException, ClassNotFoundException {
+            switch (COMMANDS[command]) {
+                case "ET":
+                    return send(String.format("ET %.1f", 15 + ThreadLocalRandom.current().nextDouble(15)), null);
+                case "EI":
+                    return send("EI " + imageName(), image);
+                case "RT":
+                    return send("RT " + domain, null);
+                default:
+                    return send("RI " + userId + ":" + deviceId, null);
+            }
+        }
+
+        // Sends one command and consumes the whole reply, including the payload and
+        // trailing status the server writes after RT and RI data.
+        private String send(String command, byte[] payload) throws IOException, ClassNotFoundException {
+            out.writeObject(command);
+            if (payload != null) {
+                out.writeObject(payload);
+            }
+            out.reset();
+            String response = (String) in.readObject();
+            if (response.equals("OK") && (command.startsWith("RT ") || command.startsWith("RI "))) {
+                long size = in.readLong();
+                // RT data is written with writeChars, two bytes per char
+                byte[] data = new byte[(int) (command.startsWith("RT ") ? size * 2 : size)];
+                in.readFully(data);
+                response = (String) in.readObject();
+            }
+            return response;
+        }
+
+        private String imageName() {
+            return "lg-" + userId + "-" + deviceId + ".jpg";
+        }
+    }
+
+    // Concurrent latency histogram in microseconds with log-linear buckets
+    // (64 sub-buckets per power of two, about 1.5% relative error).
+    private static class Histogram {
+
+        private static final int SUB_BITS = 6;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_COUNT);
+        private final LongAdder count = new LongAdder();
+        private volatile long max;
+
+        void record(long micros) {
+            long value = Math.max(0, micros);
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            if (value > max) {
+                synchronized (this) {
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max;
+        }
+
+        long percentile(double percentile) {
+            long total = count();
+            long target = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+            int sub = (int) (value >>> (exponent - 1)) & (SUB_COUNT - 1);
+            return exponent * SUB_COUNT + sub;
+        }
+
+        private static long upperBound(int index) {
+            int exponent = index / SUB_COUNT;
+            long sub = index % SUB_COUNT;
+            if (exponent == 0) {
+                return sub;
+            }
+            return ((sub | SUB_COUNT) << (exponent - 1)) + (1L << (exponent - 1)) - 1;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bounded on-disk ring buffer of temperature readings taken while the device is
+// offline. The file is memory-mapped so appends survive a crash of the device
+// process. Every reading gets a sequence number that only grows (it is seeded from
+// the clock when the file is created), which lets the server drop readings it has
+// already acknowledged. When the buffer is full the oldest reading is overwritten.
+//
+// Layout: magic (int), capacity (int), first unacknowledged seq (long), next seq (long),
+// then capacity records of seq (long), timestamp (long), value (float).
+public class OfflineBuffer implements Closeable {
+
+    private static final int MAGIC = 0x494f5442; // "IOTB"
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_SIZE = 20;
+
+    public static class Reading {
+        public final long seq;
+        public final long timestamp;
+        public final float value;
+
+        Reading(long seq, long timestamp, float value) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private long firstSeq; // oldest reading not yet acknowledged by the server
+    private long nextSeq;
+
+    public OfflineBuffer(File path, int capacity) throws IOException {
+        if (path.getParentFile() != null && !path.getParentFile().exists()) {
+            path.getParentFile().mkdirs();
+        }
+        boolean exists = path.exists() && path.length() >= HEADER_SIZE;
+        this.file = new RandomAccessFile(path, "rw");
+        MappedByteBuffer mapped;
+        if (exists) {
+            mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            if (mapped.getInt(0) != MAGIC) {
+                file.close();
+                throw new IOException("Not an offline buffer: " + path);
+            }
+            this.capacity = mapped.getInt(4);
+            this.firstSeq = mapped.getLong(8);
+            this.nextSeq = mapped.getLong(16);
+        } else {
+            mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            this.capacity = capacity;
+            this.nextSeq = System.currentTimeMillis() * 1000; // never reuses sequence numbers of a lost file
+            this.firstSeq = nextSeq;
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, capacity);
+            writeHeader(mapped);
+        }
+        this.buffer = mapped;
+    }
+
+    // Returns false if the buffer was full and the oldest reading had to be dropped
+    public synchronized boolean append(long timestamp, float value) {
+        boolean dropped = false;
+        if (nextSeq - firstSeq >= capacity) {
+            firstSeq++;
+            dropped = true;
+        }
+        int offset = HEADER_SIZE + (int) (nextSeq % capacity) * RECORD_SIZE;
+        buffer.putLong(offset, nextSeq);
+        buffer.putLong(offset + 8, timestamp);
+        buffer.putFloat(offset + 16, value);
+        nextSeq++;
+        writeHeader(buffer);
+        buffer.force();
+        return !dropped;
+    }
+
+    // Oldest unacknowledged readings, at most max of them
+    public synchronized List<Reading> peek(int max) {
+        List<Reading> readings = new ArrayList<>();
+        for (long seq = firstSeq; seq < nextSeq && readings.size() < max; seq++) {
+            int offset = HEADER_SIZE + (int) (seq % capacity) * RECORD_SIZE;
+            readings.add(new Reading(buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getFloat(offset + 16)));
+        }
+        return readings;
+    }
+
+    // The server has stored every reading up to and including seq
+    public synchronized void acknowledge(long seq) {
+        if (seq < firstSeq) {
+            return;
+        }
+        firstSeq = Math.min(seq + 1, nextSeq);
+        writeHeader(buffer);
+        buffer.force();
+    }
+
+    public synchronized int size() {
+        return (int) (nextSeq - firstSeq);
+    }
+
+    public synchronized boolean isEmpty() {
+        return nextSeq == firstSeq;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private void writeHeader(MappedByteBuffer target) {
+        target.putLong(8, firstSeq);
+        target.putLong(16, nextSeq);
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Which devices are online, and on which connection. Every client connection holds a
+// lease that each frame it sends (commands or "HB" heartbeats) renews. A connection
+// that stays silent for longer than the lease, such as a half-open TCP connection,
+// is closed and its device ids are freed. A device id held by an expired lease can
+// be claimed again right away, even before the timer wheel gets to it.
+public class Presence {
+
+    // One client connection; holds one device, or many for a gateway
+    public class Session {
+        private final Closeable connection;
+        private final Set<String> devices = ConcurrentHashMap.newKeySet();
+        private volatile long lastSeen = System.currentTimeMillis();
+        private volatile boolean ended;
+        private TimerWheel.Timeout timeout;
+
+        Session(Closeable connection) {
+            this.connection = connection;
+        }
+
+        public void renew() {
+            lastSeen = System.currentTimeMillis();
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - lastSeen >= leaseMillis;
+        }
+    }
+
+    private final Map<String, Session> online = new ConcurrentHashMap<>(); // userId:deviceId -> session
+    private final long leaseMillis;
+    private final TimerWheel wheel;
+    private final AsyncLogger log;
+
+    public Presence(long leaseMillis, AsyncLogger log) {
+        this.leaseMillis = leaseMillis;
+        this.log = log;
+        this.wheel = new TimerWheel("presence-leases", Math.max(10, Math.min(1000, leaseMillis / 20)), 512);
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    // Starts the lease of a new connection
+    public Session open(Closeable connection) {
+        Session session = new Session(connection);
+        synchronized (session) {
+            session.timeout = wheel.schedule(() -> check(session), leaseMillis);
+        }
+        return session;
+    }
+
+    // Stops the lease without closing the connection (peer and replication links are long-lived)
+    public void detach(Session session) {
+        synchronized (session) {
+            session.ended = true;
+            session.timeout.cancel();
+        }
+    }
+
+    // Marks userId:deviceId as online on this session; false if a live session already holds it
+    public boolean claim(Session session, String userId, String deviceId) {
+        String key = userId + ":" + deviceId;
+        while (true) {
+            Session holder = online.putIfAbsent(key, session);
+            if (holder == null || holder == session) {
+                session.devices.add(key);
+                return true;
+            }
+            if (!holder.isExpired()) {
+                return false;
+            }
+            expire(holder, "lease_expired"); // frees the id, then try again
+        }
+    }
+
+    // Like claim, but the id is taken from a live holder as well: a valid session token proves
+    // this is the same device coming back, so the connection still holding its id is a stale
+    // one. That connection is closed, unless it is a gateway that still speaks for others.
+    public void takeOver(Session session, String userId, String deviceId) {
+        String key = userId + ":" + deviceId;
+        while (true) {
+            Session holder = online.putIfAbsent(key, session);
+            if (holder == null || holder == session) {
+                session.devices.add(key);
+                return;
+            }
+            if (holder.devices.size() > 1) {
+                release(holder, userId, deviceId);
+                log.info("device_taken_over", "device", key);
+            } else {
+                expire(holder, "session_replaced");
+            }
+        }
+    }
+
+    // Whether this session still holds userId:deviceId (another session may have taken it over)
+    public boolean holds(Session session, String userId, String deviceId) {
+        return online.get(userId + ":" + deviceId) == session;
+    }
+
+    public void release(Session session, String userId, String deviceId) {
+        String key = userId + ":" + deviceId;
+        session.devices.remove(key);
+        online.remove(key, session);
+    }
+
+    // The connection ended: cancel its lease and free its device ids
+    public void close(Session session) {
+        detach(session);
+        for (String key : session.devices) {
+            online.remove(key, session);
+        }
+        session.devices.clear();
+    }
+
+    // The subset of the given userId:deviceId keys that are online
+    public List<String> onlineOf(Collection<String> devices) {
+        List<String> result = new ArrayList<>();
+        for (String device : devices) {
+            Session session = online.get(device);
+            if (session != null && !session.isExpired()) {
+                result.add(device);
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return online.size();
+    }
+
+    // Runs on the wheel thread when the lease may have run out
+    private void check(Session session) {
+        synchronized (session) {
+            if (session.ended) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - session.lastSeen;
+            if (idle < leaseMillis) {
+                session.timeout = wheel.schedule(() -> check(session), leaseMillis - idle); // renewed meanwhile
+                return;
+            }
+        }
+        expire(session, "lease_expired");
+    }
+
+    private void expire(Session session, String event) {
+        synchronized (session) {
+            if (session.ended) {
+                return;
+            }
+        }
+        log.info(event, "devices", String.valueOf(session.devices)); // formatted now, close() clears the set
+        close(session);
+        try {
+            session.connection.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
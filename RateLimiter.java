@@ -0,0 +1,153 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-device and per-user token buckets for each class of command. Rates are in
+// requests per second and can be changed with -Diot.limit.device.<class>=<rate>
+// and -Diot.limit.user.<class>=<rate>; a rate of 0 disables that limit. Each
+// bucket holds up to iot.limit.burst seconds worth of tokens. User and device ids
+// are chosen by clients, so buckets that have refilled completely, and so behave
+// exactly like new ones, are dropped every few seconds to keep the table bounded.
+public class RateLimiter {
+
+    private static final long SWEEP_NANOS = 10_000_000_000L; // how often full buckets are dropped
+
+    public static final String WRITE = "write"; // ET, ETB
+    public static final String IMAGE = "image"; // EI
+    public static final String READ = "read"; // RT, RI, WHO
+    public static final String ADMIN = "admin"; // CREATE, ADD, RD and everything else
+
+    private static final String[] CLASSES = { WRITE, IMAGE, READ, ADMIN };
+    private static final double[] DEVICE_DEFAULTS = { 50, 5, 20, 10 };
+    private static final double[] USER_DEFAULTS = { 200, 20, 80, 20 };
+
+    private final Map<String, Double> deviceRates = new HashMap<>();
+    private final Map<String, Double> userRates = new HashMap<>();
+    private final double burstSeconds;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    public RateLimiter() {
+        for (int i = 0; i < CLASSES.length; i++) {
+            deviceRates.put(CLASSES[i], rateProperty("iot.limit.device." + CLASSES[i], DEVICE_DEFAULTS[i]));
+            userRates.put(CLASSES[i], rateProperty("iot.limit.user." + CLASSES[i], USER_DEFAULTS[i]));
+        }
+        this.burstSeconds = rateProperty("iot.limit.burst", 1);
+    }
+
+    public static String commandClass(String command) {
+        switch (command) {
+            case "ET":
+            case "ETB":
+                return WRITE;
+            case "EI":
+                return IMAGE;
+            case "RT":
+            case "RI":
+            case "WHO":
+                return READ;
+            default:
+                return ADMIN;
+        }
+    }
+
+    // Returns 0 if the command may run now, otherwise the milliseconds to wait before retrying
+    public long acquire(String userId, String deviceId, String commandClass) {
+        sweepIfDue();
+        String deviceKey = "device:" + userId + ":" + deviceId + ":" + commandClass;
+        TokenBucket device = bucket(deviceKey, deviceRates.get(commandClass));
+        long wait = consume(deviceKey, device, deviceRates.get(commandClass));
+        if (wait > 0) {
+            return wait;
+        }
+        String userKey = "user:" + userId + ":" + commandClass;
+        wait = consume(userKey, bucket(userKey, userRates.get(commandClass)), userRates.get(commandClass));
+        if (wait > 0 && device != null) {
+            device.refund(); // the device was not the reason for the rejection
+        }
+        return wait;
+    }
+
+    // A bucket dropped by the sweep between lookup and use is looked up again
+    private long consume(String key, TokenBucket bucket, double rate) {
+        while (bucket != null) {
+            long wait = bucket.tryConsume();
+            if (wait >= 0) {
+                return wait;
+            }
+            bucket = bucket(key, rate);
+        }
+        return 0;
+    }
+
+    private TokenBucket bucket(String key, double rate) {
+        if (rate <= 0) {
+            return null;
+        }
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(rate, Math.max(1, rate * burstSeconds)));
+    }
+
+    // Drops full buckets, at most once per SWEEP_NANOS and by one caller at a time
+    private void sweepIfDue() {
+        long last = lastSweep.get();
+        long now = System.nanoTime();
+        if (now - last < SWEEP_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        buckets.entrySet().removeIf(entry -> entry.getValue().evictIfFull(now));
+    }
+
+    private static double rateProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static class TokenBucket {
+
+        private final double rate; // tokens per second
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+        private boolean evicted; // dropped from the table, callers must fetch a new bucket
+
+        TokenBucket(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        // Returns 0 if a token was taken, the wait in ms if not, or -1 if the bucket was evicted
+        synchronized long tryConsume() {
+            if (evicted) {
+                return -1;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / rate * 1000);
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        synchronized boolean evictIfFull(long now) {
+            evicted = tokens + (now - lastRefill) / 1e9 * rate >= capacity;
+            return evicted;
+        }
+    }
+}
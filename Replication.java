@@ -0,0 +1,524 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Primary-backup replication by log shipping. On the primary every state mutation
+// is appended to an ordered in-memory log and streamed to the connected backups,
+// which apply it and acknowledge the sequence number. A backup that is new, or too
+// far behind for the log, first receives a snapshot of the data files. The log is
+// bounded by records and by bytes (EI records carry the image), and nothing is kept
+// when replication is off or on a backup, which never serves its log.
+//
+// Failover is guarded against split-brain from both sides. A backup only takes over
+// after failoverTimeout without any frame from the primary, which sends a heartbeat
+// every second when idle. The primary fences itself (goes read-only) once no backup
+// it knows of, attached or not, has answered for half that time, so by the time a
+// cut-off backup takes over the old primary has already stopped accepting writes.
+// Backups that detach are remembered at their last acked record: they keep counting
+// for maxLag and for the ack quorum until they attach again, or until forgetAfter
+// passes without news from them. A backup that stays away that long is taken to be
+// dead and the primary writes again; should it have taken over meanwhile, the two
+// servers diverge, so forgetAfter trades that risk against availability.
+//
+// With several backups only one of them takes over. The primary ranks its backups in
+// the order they first attached and sends the list with its heartbeats. A backup whose
+// failoverTimeout ran out first asks the backups ranked before it: if one of them is
+// already primary it follows that one, if one is still a backup it keeps waiting for
+// it, and only if none answers does it take over itself. Backups that cannot reach
+// each other either can still both take over.
+//
+// Configuration (-D properties):
+//   iot.replication.secret           shared secret backups must present (no secret = no backups)
+//   iot.replication.primary          host:port of the primary; makes this server a read-only backup
+//   iot.replication.ack              none (default), one or all: backups that must ack before a write returns;
+//                                    writes get BUSY while fewer backups are attached
+//   iot.replication.ackTimeout       ms a write waits for those acks (default 2000)
+//   iot.replication.maxLag           unacked records allowed before writes get BUSY (default 1000)
+//   iot.replication.logSize          records kept for catching up backups (default 10000)
+//   iot.replication.logBytes         bytes of records and images kept for that (default 64 MB)
+//   iot.replication.failoverTimeout  ms without the primary before a backup takes over, and twice the time a
+//                                    primary keeps writing without its backups (default 10000, 0 = never);
+//                                    must be the same on the primary and its backups
+//   iot.replication.forgetAfter      ms after its last ack that a detached backup is forgotten
+//                                    (default twice failoverTimeout)
+public class Replication {
+
+    // The part of the server that replication reads from and writes to
+    public interface Target {
+        void applyRecord(String record, byte[] payload);
+
+        Snapshot takeSnapshot();
+
+        void installSnapshot(Snapshot snapshot);
+    }
+
+    public static class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final long seq; // last record included in the snapshot
+        public final HashMap<String, byte[]> files; // relative path -> contents
+
+        public Snapshot(long seq, HashMap<String, byte[]> files) {
+            this.seq = seq;
+            this.files = files;
+        }
+    }
+
+    private static class Entry {
+        private final long seq;
+        private final String record;
+        private final byte[] payload;
+
+        Entry(long seq, String record, byte[] payload) {
+            this.seq = seq;
+            this.record = record;
+            this.payload = payload;
+        }
+    }
+
+    private static class Follower {
+        private final String address; // host:port the backup serves clients on
+        private volatile long acked;
+        private volatile long lastHeard = System.currentTimeMillis(); // last ack or heartbeat answer
+        private volatile boolean attached = true;
+
+        Follower(String address, long acked) {
+            this.address = address;
+            this.acked = acked;
+        }
+    }
+
+    private static final long HEARTBEAT_MILLIS = 1000; // idle primary -> backup heartbeat
+
+    private final Target target;
+    private final AsyncLogger events; // replication events go to the server log
+    private final String logId; // identifies this primary's log, sequence numbers restart with it
+    private final int port; // sent to the primary, which tells its backups apart by address and port
+    private final String secret;
+    private final String ackMode;
+    private final long ackTimeout;
+    private final long maxLag;
+    private final int logSize;
+    private final long maxLogBytes;
+    private final long failoverTimeout;
+    private final long forgetAfter;
+
+    private final ArrayDeque<Entry> log = new ArrayDeque<>();
+    private long logBytes; // size of the records and payloads in log
+    private long lastSeq;
+    private final Map<String, Follower> followers = new LinkedHashMap<>(); // host:port -> backup, in rank order
+    private int membersVersion; // changes when a backup is added to or dropped from followers
+    private final ThreadLocal<Long> lastAppended = new ThreadLocal<>(); // last record written by this thread
+    private volatile boolean backup;
+
+    public Replication(Target target, int port, AsyncLogger events) {
+        this.target = target;
+        this.events = events;
+        this.port = port;
+        byte[] id = new byte[8];
+        new SecureRandom().nextBytes(id);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : id) {
+            hex.append(String.format("%02x", b));
+        }
+        this.logId = hex.toString();
+        this.secret = System.getProperty("iot.replication.secret");
+        this.ackMode = System.getProperty("iot.replication.ack", "none");
+        this.ackTimeout = Long.getLong("iot.replication.ackTimeout", 2000);
+        this.maxLag = Long.getLong("iot.replication.maxLag", 1000);
+        this.logSize = Integer.getInteger("iot.replication.logSize", 10000);
+        this.maxLogBytes = Long.getLong("iot.replication.logBytes", 64L * 1024 * 1024);
+        this.failoverTimeout = Long.getLong("iot.replication.failoverTimeout", 10000);
+        this.forgetAfter = Long.getLong("iot.replication.forgetAfter", 2 * failoverTimeout);
+        if (!ackMode.equals("none") && secret == null) {
+            throw new IllegalArgumentException("iot.replication.ack requires iot.replication.secret");
+        }
+    }
+
+    public boolean isBackup() {
+        return backup;
+    }
+
+    // True on a backup, and on a primary that has not heard from any of its backups for long
+    // enough that one may have taken over: writes must be refused
+    public synchronized boolean isReadOnly() {
+        if (backup) {
+            return true;
+        }
+        forgetDetached();
+        if (failoverTimeout <= 0 || followers.isEmpty()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (Follower follower : followers.values()) {
+            if (now - follower.lastHeard <= failoverTimeout / 2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Drops the backups that detached and have not been heard from for forgetAfter
+    private void forgetDetached() {
+        long now = System.currentTimeMillis();
+        Iterator<Follower> it = followers.values().iterator();
+        while (it.hasNext()) {
+            Follower follower = it.next();
+            if (!follower.attached && now - follower.lastHeard > forgetAfter) {
+                it.remove();
+                membersVersion++;
+                events.warn("replication_backup_forgotten", "backup", follower.address, "acked", follower.acked);
+            }
+        }
+    }
+
+    // Starts following the primary given in iot.replication.primary, if any
+    public void startBackupIfConfigured() {
+        String primary = System.getProperty("iot.replication.primary");
+        if (primary == null || primary.isEmpty()) {
+            return;
+        }
+        if (secret == null) {
+            throw new IllegalArgumentException("iot.replication.primary requires iot.replication.secret");
+        }
+        backup = true;
+        Thread thread = new Thread(() -> followPrimary(primary), "replication-backup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // ---- primary side ----
+
+    // Called by the server, while holding its lock, after each state mutation
+    public synchronized void append(String record, byte[] payload) {
+        if (secret == null || backup) {
+            return; // no backup can ever read it
+        }
+        lastSeq++;
+        log.addLast(new Entry(lastSeq, record, payload));
+        logBytes += sizeOf(log.getLast());
+        while (log.size() > logSize || (logBytes > maxLogBytes && log.size() > 1)) {
+            logBytes -= sizeOf(log.removeFirst());
+        }
+        lastAppended.set(lastSeq);
+        notifyAll();
+    }
+
+    private static long sizeOf(Entry entry) {
+        return entry.record.length() + (entry.payload == null ? 0 : entry.payload.length);
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    // True when a write should get BUSY: the slowest backup, attached or not, is so far behind
+    // that a failover would lose more than maxLag records, or too few backups are attached to
+    // acknowledge it
+    public synchronized boolean isLagging() {
+        forgetDetached();
+        int attached = 0;
+        for (Follower follower : followers.values()) {
+            if (lastSeq - follower.acked > maxLag) {
+                return true;
+            }
+            if (follower.attached) {
+                attached++;
+            }
+        }
+        return attached < requiredAcks();
+    }
+
+    // Backups that must acknowledge a write under iot.replication.ack
+    private int requiredAcks() {
+        switch (ackMode) {
+            case "one":
+                return 1;
+            case "all":
+                return Math.max(1, followers.size());
+            default:
+                return 0;
+        }
+    }
+
+    // Waits, according to iot.replication.ack, until backups acknowledged the records this
+    // thread appended. Returns false if the acks did not arrive in time.
+    public boolean awaitAck() {
+        Long seq = lastAppended.get();
+        lastAppended.remove();
+        if (seq == null || ackMode.equals("none")) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + ackTimeout;
+        synchronized (this) {
+            while (true) {
+                int acked = 0;
+                for (Follower follower : followers.values()) {
+                    if (follower.acked >= seq) {
+                        acked++;
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (acked >= requiredAcks()) {
+                    return true;
+                }
+                if (remaining <= 0) {
+                    events.warn("replication_ack_timeout", "seq", seq, "mode", ackMode);
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+
+    // Serves a backup that connected with "REPLICA <secret> <logId> <lastSeq> <port>";
+    // returns when it disconnects. "REPLICA <secret> PING" asks whether this server is
+    // PRIMARY or BACKUP, which backups use to agree on a single successor.
+    public void serveBackup(Socket socket, ObjectInputStream in, ObjectOutputStream out, String request)
+            throws IOException, ClassNotFoundException {
+        String[] parts = request.split(" ");
+        if (secret == null || parts.length < 3 || !parts[1].equals(secret)) {
+            out.writeObject("NOPERM");
+            return;
+        }
+        if (parts.length == 3 && parts[2].equals("PING")) {
+            out.writeObject(backup ? "BACKUP" : "PRIMARY");
+            return;
+        }
+        if (backup || parts.length != 5) {
+            out.writeObject("NOPERM");
+            return;
+        }
+        long from = Long.parseLong(parts[3]);
+        String address = socket.getInetAddress().getHostAddress() + ":" + parts[4];
+        out.writeObject("OK-REPLICA " + logId + " " + address);
+
+        boolean canStream;
+        synchronized (this) {
+            long first = log.isEmpty() ? lastSeq + 1 : log.getFirst().seq;
+            canStream = parts[2].equals(logId) && from >= first - 1 && from <= lastSeq;
+        }
+        if (canStream) {
+            out.writeObject("STREAM");
+        } else {
+            Snapshot snapshot = target.takeSnapshot();
+            out.writeObject("SNAPSHOT");
+            out.writeObject(snapshot);
+            out.reset();
+            from = snapshot.seq;
+        }
+
+        Follower follower = new Follower(address, from);
+        synchronized (this) {
+            if (followers.put(follower.address, follower) == null) { // replaces the entry it left when it detached
+                membersVersion++;
+            }
+        }
+        events.info("replication_backup_attached", "backup", follower.address, "seq", from);
+
+        Thread ackReader = new Thread(() -> readAcks(in, follower), "replication-acks");
+        ackReader.setDaemon(true);
+        ackReader.start();
+        try {
+            long next = from + 1;
+            int sentVersion = -1;
+            while (ackReader.isAlive()) {
+                List<Entry> entries = entriesFrom(next);
+                for (Entry entry : entries) {
+                    out.writeObject(entry.seq);
+                    out.writeObject(entry.record);
+                    out.writeObject(entry.payload);
+                    next = entry.seq + 1;
+                }
+                String members = null;
+                synchronized (this) {
+                    if (entries.isEmpty() || sentVersion != membersVersion) {
+                        sentVersion = membersVersion;
+                        members = String.join(",", followers.keySet());
+                    }
+                }
+                if (members != null) {
+                    // Heartbeat with the backups in rank order; the backup answers with its last applied record
+                    out.writeObject(-1L);
+                    out.writeObject(members);
+                }
+                out.reset();
+            }
+        } finally {
+            synchronized (this) {
+                follower.attached = false; // still counts at its last ack until it attaches again
+                notifyAll(); // writers waiting for this backup's ack
+            }
+            events.warn("replication_backup_detached", "backup", follower.address, "acked", follower.acked);
+        }
+    }
+
+    private synchronized List<Entry> entriesFrom(long next) throws IOException {
+        while (next > lastSeq) {
+            try {
+                wait(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+            if (next > lastSeq) {
+                return new ArrayList<>(); // let the caller check the connection
+            }
+        }
+        if (log.isEmpty() || next < log.getFirst().seq) {
+            throw new IOException("backup fell behind the replication log");
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : log) {
+            if (entry.seq >= next) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private void readAcks(ObjectInputStream in, Follower follower) {
+        try {
+            while (true) {
+                long seq = (Long) in.readObject();
+                synchronized (this) {
+                    follower.acked = seq;
+                    follower.lastHeard = System.currentTimeMillis();
+                    notifyAll();
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            // backup went away, serveBackup notices and cleans up
+        }
+    }
+
+    // ---- backup side ----
+
+    private void followPrimary(String configuredPrimary) {
+        String primary = configuredPrimary;
+        String primaryLogId = "-";
+        long lastApplied = 0;
+        long lostSince = -1; // when the connection to the primary was lost, -1 while connected
+        String self = null; // this backup as the primary sees it
+        List<String> members = new ArrayList<>(); // the primary's backups in rank order
+
+        while (backup) {
+            String[] address = primary.split(":");
+            try (Socket socket = new Socket(address[0], Integer.parseInt(address[1]))) {
+                // The primary sends a heartbeat every second, so a silent link is a dead one
+                socket.setSoTimeout((int) Math.max(3 * HEARTBEAT_MILLIS, failoverTimeout / 4));
+                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+
+                out.writeObject("REPLICA " + secret + " " + primaryLogId + " " + lastApplied + " " + port);
+                String response = (String) in.readObject();
+                if (!response.startsWith("OK-REPLICA ")) {
+                    throw new IOException("primary refused replication: " + response);
+                }
+                String[] accepted = response.split(" ");
+                primaryLogId = accepted[1];
+                self = accepted[2];
+                lostSince = -1;
+                if (in.readObject().equals("SNAPSHOT")) {
+                    Snapshot snapshot = (Snapshot) in.readObject();
+                    target.installSnapshot(snapshot);
+                    lastApplied = snapshot.seq;
+                    out.writeObject(lastApplied);
+                }
+                events.info("replication_following", "primary", primary, "seq", lastApplied);
+
+                while (true) {
+                    long seq = (Long) in.readObject();
+                    if (seq < 0) {
+                        String list = (String) in.readObject();
+                        members = list.isEmpty() ? new ArrayList<>() : Arrays.asList(list.split(","));
+                        out.writeObject(lastApplied);
+                        out.reset();
+                        continue;
+                    }
+                    String record = (String) in.readObject();
+                    byte[] payload = (byte[]) in.readObject();
+                    target.applyRecord(record, payload);
+                    lastApplied = seq;
+                    out.writeObject(lastApplied);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                if (lostSince < 0) {
+                    lostSince = System.currentTimeMillis();
+                    events.warn("replication_primary_lost", "primary", primary, "error", e.getMessage());
+                }
+            }
+
+            // Only a backup that has followed the primary at least once may take over
+            boolean synced = !primaryLogId.equals("-");
+            if (synced && failoverTimeout > 0 && System.currentTimeMillis() - lostSince > failoverTimeout) {
+                String successor = null;
+                String successorRole = null;
+                for (String member : members) {
+                    if (member.equals(self)) {
+                        break; // only backups ranked before this one have precedence
+                    }
+                    String role = ping(member);
+                    if (role != null && (successor == null || role.equals("PRIMARY"))) {
+                        successor = member;
+                        successorRole = role;
+                    }
+                    if ("PRIMARY".equals(role)) {
+                        break;
+                    }
+                }
+                if ("PRIMARY".equals(successorRole)) {
+                    events.warn("replication_successor", "primary", successor, "seq", lastApplied);
+                    primary = successor;
+                    lostSince = -1;
+                    continue;
+                }
+                if (successor == null) {
+                    backup = false;
+                    events.warn("replication_takeover", "primary", primary, "after_ms", failoverTimeout,
+                            "seq", lastApplied);
+                    return;
+                }
+                // else a backup ranked before this one is alive: let it take over first
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Asks another server whether it is PRIMARY or BACKUP; null if it does not answer
+    private String ping(String member) {
+        String[] address = member.split(":");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address[0], Integer.parseInt(address[1])), 1000);
+            socket.setSoTimeout(1000);
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.writeObject("REPLICA " + secret + " PING");
+            String role = (String) in.readObject();
+            return role.equals("PRIMARY") || role.equals("BACKUP") ? role : null;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded table of session tokens issued after a full handshake. A token lets a
+// device that reconnects skip the handshake: it is single-use, expires after a
+// fixed time, and the oldest tokens are dropped when the table is full.
+public class SessionTokens {
+
+    private static class Session {
+        private final String userId;
+        private final String deviceId;
+        private final long expiresAt;
+
+        Session(String userId, String deviceId, long expiresAt) {
+            this.userId = userId;
+            this.deviceId = deviceId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final LinkedHashMap<String, Session> tokens; // insertion order == expiry order
+
+    public SessionTokens(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.tokens = new LinkedHashMap<String, Session>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > SessionTokens.this.capacity;
+            }
+        };
+    }
+
+    public synchronized String issue(String userId, String deviceId) {
+        purgeExpired();
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tokens.put(token, new Session(userId, deviceId, System.currentTimeMillis() + ttlMillis));
+        return token;
+    }
+
+    // Returns {userId, deviceId} for a valid token and invalidates it, or null
+    public synchronized String[] redeem(String token) {
+        purgeExpired();
+        Session session = tokens.remove(token);
+        if (session == null) {
+            return null;
+        }
+        return new String[] { session.userId, session.deviceId };
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> iterator = tokens.values().iterator();
+        while (iterator.hasNext() && iterator.next().expiresAt <= now) {
+            iterator.remove();
+        }
+    }
+}
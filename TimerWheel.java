@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hashed timing wheel: one thread, a ring of slots each holding the timeouts that fall
+// on it. Scheduling and cancelling are O(1), and every tick only looks at one slot,
+// so tens of thousands of connection leases cost almost nothing to keep. Timeouts
+// fire on the wheel thread with up to one tick of delay, so tasks must be short.
+public class TimerWheel {
+
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline; // ms since the wheel started
+        private long rounds; // full turns of the wheel left before it fires
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true; // removed lazily when its slot comes around
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<Timeout>> slots = new ArrayList<>();
+    private final int mask;
+    private final long startTime = System.currentTimeMillis();
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private long tick; // ticks processed so far, only used by the wheel thread
+
+    // slotCount is rounded up to a power of two
+    public TimerWheel(String name, long tickMillis, int slotCount) {
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        for (int i = 0; i < size; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.mask = size - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() - startTime + Math.max(0, delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long next = (tick + 1) * tickMillis;
+            long sleep = next - (System.currentTimeMillis() - startTime);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            placeAdded();
+            fire(slots.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    private void placeAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long due = Math.max(timeout.deadline / tickMillis, tick); // overdue ones fire on this tick
+            timeout.rounds = (due - tick) / slots.size();
+            slots.get((int) (due & mask)).add(timeout);
+        }
+    }
+
+    private void fire(List<Timeout> slot) {
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+#!/bin/sh
+# Local multi-process test setup for the sharded server.
+# Starts N IoTServer nodes on localhost, each in its own working directory under
+# cluster/ (so every node has its own data/ and images/), all sharing one ring.
+#
+#   ./cluster.sh start [nodes] [firstPort]   (default 3 nodes from port 12345)
+#   ./cluster.sh stop
+#
+# Clients can use any node as the seed, e.g.:
+#   java -cp cluster/classes IoTDevice localhost 12345 1 alice
+#   java -cp cluster/classes LoadGenerator localhost 12345 --devices 300 --users 30
+
+cd "$(dirname "$0")" || exit 1
+
+case "$1" in
+    start)
+        NODES=${2:-3}
+        FIRST_PORT=${3:-12345}
+        mkdir -p cluster/classes
+        javac -d cluster/classes *.java || exit 1
+
+        # nodes authenticate each other with a secret that is new on every start
+        SECRET=$(od -An -N16 -tx1 /dev/urandom | tr -d ' \n')
+        MEMBERS=""
+        i=0
+        while [ $i -lt "$NODES" ]; do
+            MEMBERS="$MEMBERS${MEMBERS:+,}localhost:$((FIRST_PORT + i))"
+            i=$((i + 1))
+        done
+
+        i=0
+        while [ $i -lt "$NODES" ]; do
+            PORT=$((FIRST_PORT + i))
+            DIR=cluster/node$i
+            mkdir -p "$DIR"
+            # the server attests clients against its own copy of IoTDevice.class
+            cp cluster/classes/IoTDevice.class "$DIR/"
+            # exec so the recorded pid is the JVM itself, not the subshell
+            (cd "$DIR" && exec java -cp ../classes -Diot.cluster="$MEMBERS" -Diot.node="localhost:$PORT" \
+                -Diot.cluster.secret="$SECRET" IoTServer "$PORT" > server.log 2>&1) &
+            echo $! > "$DIR/server.pid"
+            echo "node$i started on port $PORT (log: $DIR/server.log)"
+            i=$((i + 1))
+        done
+        ;;
+    stop)
+        for PID_FILE in cluster/node*/server.pid; do
+            [ -f "$PID_FILE" ] || continue
+            kill "$(cat "$PID_FILE")" 2>/dev/null
+            rm -f "$PID_FILE"
+        done
+        echo "cluster stopped"
+        ;;
+    *)
+        echo "Usage: $0 start [nodes] [firstPort] | stop"
+        exit 1
+        ;;
+esac